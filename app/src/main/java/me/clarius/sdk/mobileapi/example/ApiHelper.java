@@ -5,23 +5,35 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Rect;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
 import android.os.Messenger;
+import android.os.Process;
 import android.os.RemoteException;
+import android.system.ErrnoException;
 import android.util.Log;
+import android.util.Size;
+
+import androidx.annotation.RequiresApi;
+import androidx.core.content.ContextCompat;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 import me.clarius.sdk.mobileapi.ButtonInfo;
 import me.clarius.sdk.mobileapi.MobileApi;
@@ -48,11 +60,21 @@ import me.clarius.sdk.mobileapi.ProcessedImageInfo;
  * a. if it matches, it is the return status for our request;
  * b. otherwise, it is the return status for another request.
  * 3. Use different codes to differentiate requests.
+ * <p>
+ * The other requests get a unique callback parameter each and return a CompletableFuture completed by their reply,
+ * see PendingRequests, so several requests can be in flight at once. Replies are also notified to the listener.
+ * <p>
+ * Incoming messages are handled on a dispatch thread, see DispatchMode, and the results are posted to the listener
+ * with the listener executor (the main thread by default). This keeps image decoding away from the UI thread.
  */
 
 public class ApiHelper {
 
     private static final String TAG = "MobileApi/Helper";
+    private static final int FRAME_RING_SLOTS = 8;
+    private static final int FRAME_RING_MARGIN_BYTES = 64 * 1024;
+    private static final long DEFAULT_REQUEST_TIMEOUT_MS = 2000;
+    private static final int PREWARM_BITMAPS = 3;
 
     /**
      * Context needed to bind to service.
@@ -61,6 +83,7 @@ public class ApiHelper {
 
     /**
      * Messenger to send messages to the service.
+     * Like the connection flags below, only used on the main thread: see sendOnMain() for requests from other threads.
      */
     private Messenger mService = null;
 
@@ -69,20 +92,202 @@ public class ApiHelper {
      */
     private boolean mBound = false;
 
+    /**
+     * Service bound with bindService() and not unbound yet, and whether to rebind automatically when it is lost.
+     */
+    private ComponentName mComponent = null;
+    private boolean mBindingActive = false;
+    private boolean mAutoReconnect = false;
+    private volatile boolean mReconnecting = false;
+    private final ReconnectSupervisor mSupervisor = new ReconnectSupervisor(this::rebind);
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Last image configuration sent, replayed after reconnecting.
+     */
+    private volatile ImageConfig mLastImageConfig = null;
+
     /**
      * Target we publish for service to send messages to IncomingHandler.
      */
     private Messenger mMessenger = null;
 
+    /**
+     * Handler running IncomingHandler on the dispatch looper, null when stopped.
+     */
+    private volatile Handler mDispatchHandler = null;
+
     /**
      * Flag indicating whether we have registered our own messenger with the service.
      */
     private boolean mRegistered = false;
 
     /**
-     * Listener set by the user of this class.
+     * Registered with a success status and not reconnecting, to notify a listener set after connecting.
+     */
+    private volatile boolean mConnected = false;
+
+    /**
+     * Listener set by the user of this class, read from the dispatch thread.
+     */
+    private volatile Listener mListener = null;
+
+    /**
+     * Where incoming messages are handled when no dispatch looper is supplied.
+     */
+    private DispatchMode mDispatchMode = DispatchMode.BACKGROUND_THREAD;
+
+    /**
+     * Optional looper supplied by the user of this class to handle incoming messages.
+     */
+    private Looper mDispatchLooper = null;
+
+    /**
+     * Dedicated thread handling incoming messages in DispatchMode.BACKGROUND_THREAD.
+     */
+    private HandlerThread mDispatchThread = null;
+
+    /**
+     * Where the listener is notified, the main thread by default.
+     */
+    private Executor mListenerExecutor;
+
+    /**
+     * Image path statistics.
+     */
+    private final FrameStats mStats = new FrameStats();
+
+    /**
+     * Image path latencies.
+     */
+    private final FrameMetrics mMetrics = new FrameMetrics();
+
+    /**
+     * Recycle the bitmaps of decoded frames.
+     */
+    private final BitmapPool mBitmapPool = new BitmapPool(4);
+
+    /**
+     * Recycle the luma frames, see ImageOutput.
+     */
+    private final LumaPool mLumaPool = new LumaPool(4);
+
+    /**
+     * Receive the luma frames with their executor, see addLumaListener().
+     */
+    private final CopyOnWriteArrayList<LumaRegistration> mLumaListeners = new CopyOnWriteArrayList<>();
+
+    private static class LumaRegistration {
+        final LumaListener listener;
+        final Executor executor;
+
+        LumaRegistration(LumaListener listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+    }
+
+    /**
+     * Decode the processed images, applying the backpressure policy.
+     */
+    private final FramePipeline mPipeline = new FramePipeline(mStats, mBitmapPool, mLumaPool, this::onFrameDecoded);
+
+    /**
+     * Observers of the frames before decoding, called on the dispatch thread.
+     */
+    private final CopyOnWriteArrayList<FrameObserver> mFrameObservers = new CopyOnWriteArrayList<>();
+
+    /**
+     * Observers of the incoming messages, called on the dispatch thread.
+     */
+    private final CopyOnWriteArrayList<MessageObserver> mMessageObservers = new CopyOnWriteArrayList<>();
+
+    /**
+     * Last known scanner state, updated on the dispatch thread.
+     */
+    private final StateCache mState = new StateCache();
+
+    /**
+     * Requests waiting for their reply, and how long to wait.
      */
-    private Listener mListener = null;
+    private final PendingRequests mRequests = new PendingRequests();
+    private volatile long mRequestTimeoutMs = DEFAULT_REQUEST_TIMEOUT_MS;
+
+    /**
+     * Whether to offer the shared memory frame transport with the image configuration.
+     */
+    private boolean mSharedMemoryTransport = false;
+
+    /**
+     * Ring receiving the frames with the shared memory transport, read on the dispatch thread.
+     */
+    private volatile SharedFrameRing mFrameRing = null;
+
+    /**
+     * Recycle the buffers receiving the shared frames, as many as the frames the ring can hold.
+     */
+    private final FrameBufferPool mFrameBuffers = new FrameBufferPool(FRAME_RING_SLOTS);
+
+    /**
+     * Whether whole frames or only the scan area are decoded.
+     */
+    private volatile DecodeMode mDecodeMode = DecodeMode.FULL_FRAME;
+
+    /**
+     * What is produced from each frame.
+     */
+    private volatile ImageOutput mImageOutput = ImageOutput.BITMAP;
+
+    /**
+     * Last scan area received from the service, only used on the dispatch thread.
+     */
+    private Rect mScanArea = null;
+
+    /**
+     * Skip decoding frames unchanged since the previous one, the detector is only used on the dispatch thread.
+     */
+    private volatile FrameChangeDetector.Mode mChangeDetection = FrameChangeDetector.Mode.OFF;
+    private final FrameChangeDetector mChangeDetector = new FrameChangeDetector();
+    private Rect mChangeDetectorRegion = null;
+
+    /**
+     * Whether to deliver the last decoded bitmap again for unchanged frames.
+     */
+    private volatile boolean mReemitUnchanged = false;
+
+    /**
+     * Last decoded bitmap, retained to re-emit it, guarded by its lock.
+     */
+    private final Object mLastBitmapLock = new Object();
+    private Bitmap mLastBitmap = null;
+
+    /**
+     * Whether the image pipeline is frozen, updated on the dispatch thread from the freeze messages.
+     */
+    private volatile boolean mFrozen = false;
+
+    /**
+     * Unused bitmaps kept while frozen.
+     */
+    private volatile int mFrozenPoolFloor = 1;
+
+    /**
+     * Size of the last decoded bitmap, to prewarm the pool when unfreezing.
+     */
+    private volatile int mLastDecodedWidth = 0;
+    private volatile int mLastDecodedHeight = 0;
+
+    /**
+     * Decoded overlay layers and the one currently shown, only used on the dispatch thread.
+     */
+    private final OverlayCache mOverlayCache = new OverlayCache();
+    private Bitmap mCurrentOverlay = null;
+    private ProcessedImageInfo mCurrentOverlayInfo = null;
+
+    /**
+     * Sequence number of the last processed image received, only used on the dispatch thread.
+     */
+    private long mFrameSequence = 0;
 
     /**
      * Constructor, the service is initially disconnected.
@@ -91,6 +296,7 @@ public class ApiHelper {
      */
     public ApiHelper(Context context) {
         mContext = context.getApplicationContext();
+        mListenerExecutor = ContextCompat.getMainExecutor(mContext);
     }
 
     /**
@@ -118,8 +324,16 @@ public class ApiHelper {
      * Helper to report errors.
      */
     private void reportError(String message) {
-        if (null != mListener)
-            mListener.onError(message);
+        notifyListener(listener -> listener.onError(message));
+    }
+
+    /**
+     * Post a notification to the listener with the listener executor.
+     */
+    private void notifyListener(Consumer<Listener> fn) {
+        Listener listener = mListener;
+        if (null != listener)
+            mListenerExecutor.execute(() -> fn.accept(listener));
     }
 
     /**
@@ -128,6 +342,228 @@ public class ApiHelper {
      */
     public void setListener(Listener listener) {
         mListener = listener;
+        // the connection may have been started before this listener, for example by the application
+        if (null != listener && mConnected)
+            mListenerExecutor.execute(() -> listener.onConnected(true));
+    }
+
+    /**
+     * Select where incoming messages are handled, takes effect on the next connection.
+     */
+    public void setDispatchMode(DispatchMode mode) {
+        mDispatchMode = mode;
+    }
+
+    /**
+     * Handle incoming messages on the given looper instead, takes effect on the next connection.
+     *
+     * @param looper The looper to use, or null to follow the dispatch mode.
+     */
+    public void setDispatchLooper(Looper looper) {
+        mDispatchLooper = looper;
+    }
+
+    /**
+     * Select where the listener is notified, the main thread by default.
+     */
+    public void setListenerExecutor(Executor executor) {
+        if (null == executor)
+            throw new IllegalArgumentException("executor is null");
+        mListenerExecutor = executor;
+    }
+
+    /**
+     * Select the backpressure policy applied to processed images when decoding falls behind.
+     *
+     * @param policy What to do with frames that cannot be decoded in time.
+     * @param capacity The maximum number of pending frames, ignored with FrameQueue.Policy.LATEST_ONLY.
+     */
+    public void setFramePolicy(FrameQueue.Policy policy, int capacity) {
+        mPipeline.setPolicy(policy, capacity);
+    }
+
+    /**
+     * Select whether whole frames or only the scan area are decoded, takes effect with the next frame.
+     * <p>
+     * With DecodeMode.SCAN_AREA, the scan area is asked to the service on connection and followed on changes.
+     */
+    public void setDecodeMode(DecodeMode mode) {
+        if (mode == mDecodeMode)
+            return;
+        mDecodeMode = mode;
+        // the overlay region follows the decoded region
+        Handler handler = mDispatchHandler;
+        if (null != handler)
+            handler.post(() -> {
+                if (null != mCurrentOverlay)
+                    notifyOverlay();
+            });
+    }
+
+    /**
+     * Select what is produced from each frame, takes effect with the next frame.
+     * <p>
+     * Luma frames are sent to the listeners added with addLumaListener(), and only produced while there is one.
+     */
+    public void setImageOutput(ImageOutput output) {
+        mImageOutput = output;
+        updateOutputs();
+    }
+
+    /**
+     * Receive the luma frames, see ImageOutput. Does nothing if the listener was already added.
+     *
+     * @param executor Where the listener is called, for example a background executor for analysis.
+     */
+    public void addLumaListener(LumaListener listener, Executor executor) {
+        if (null == executor)
+            throw new IllegalArgumentException("executor is null");
+        for (LumaRegistration registration : mLumaListeners) {
+            if (registration.listener == listener)
+                return;
+        }
+        mLumaListeners.add(new LumaRegistration(listener, executor));
+        updateOutputs();
+    }
+
+    /**
+     * Stop sending luma frames to this listener, luma frames are no longer produced after the last one is removed.
+     */
+    public void removeLumaListener(LumaListener listener) {
+        mLumaListeners.removeIf(registration -> registration.listener == listener);
+        updateOutputs();
+    }
+
+    private void updateOutputs() {
+        ImageOutput output = mImageOutput;
+        boolean luma = !mLumaListeners.isEmpty() && ImageOutput.BITMAP != output;
+        mPipeline.setOutputs(!luma || ImageOutput.LUMA != output, luma);
+    }
+
+    /**
+     * Skip decoding frames unchanged since the previous one, see FrameChangeDetector.
+     *
+     * @param mode How to compare frames.
+     * @param reemit Whether to deliver the last decoded bitmap again with the info of each unchanged frame,
+     * for listeners expecting all frames. Otherwise unchanged frames are not delivered.
+     */
+    public void setChangeDetection(FrameChangeDetector.Mode mode, boolean reemit) {
+        mChangeDetection = mode;
+        mReemitUnchanged = reemit;
+        if (!reemit)
+            keepLastBitmap(null);
+    }
+
+    /**
+     * Set the number of unused bitmaps kept while frozen, the pool is refilled when unfreezing.
+     */
+    public void setFrozenPoolFloor(int floor) {
+        mFrozenPoolFloor = floor;
+    }
+
+    /**
+     * Whether the image pipeline is frozen, following MSG_FREEZE_CHANGED and MSG_RETURN_FREEZE.
+     */
+    public boolean isFrozen() {
+        return mFrozen;
+    }
+
+    /**
+     * Downsample frames much larger than the displayed image while decoding, see FrameDecoder.setTargetSize().
+     *
+     * @param width The displayed width in pixels, 0 to decode at full size.
+     * @param height The displayed height in pixels, 0 to decode at full size.
+     */
+    public void setDecodeTargetSize(int width, int height) {
+        mPipeline.setTargetSize(width, height);
+    }
+
+    /**
+     * Offer the shared memory frame transport with the next image configurations, see SharedFrameRing.
+     * <p>
+     * Frames are still accepted in the message bundle, from services not supporting it or too large for the ring.
+     * Ignored before Android 8.1.
+     */
+    public void setSharedMemoryTransport(boolean enabled) {
+        mSharedMemoryTransport = enabled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1;
+    }
+
+    /**
+     * Rebind to the service automatically when it is lost, for example when the Clarius App restarts,
+     * see ReconnectSupervisor. The last image configuration is then replayed without waiting for the listener.
+     */
+    public void setAutoReconnect(boolean enabled) {
+        mAutoReconnect = enabled;
+        if (!enabled) {
+            mSupervisor.cancel();
+            mReconnecting = false;
+        }
+    }
+
+    /**
+     * The reconnections and their resume times.
+     */
+    public ReconnectSupervisor getReconnectSupervisor() {
+        return mSupervisor;
+    }
+
+    /**
+     * The last known scanner state, kept current from the change events and replies, see StateCache.
+     */
+    public StateCache getState() {
+        return mState;
+    }
+
+    /**
+     * Fail the futures of the requests not answered within this delay, takes effect with the next requests.
+     * <p>
+     * Expired futures fail with a TimeoutException, which is also how a request the service never replies to ends.
+     */
+    public void setRequestTimeout(long timeoutMs) {
+        mRequestTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Observe the frames received from the service before they are decoded, for example to record them.
+     */
+    public void addFrameObserver(FrameObserver observer) {
+        mFrameObservers.addIfAbsent(observer);
+    }
+
+    public void removeFrameObserver(FrameObserver observer) {
+        mFrameObservers.remove(observer);
+    }
+
+    /**
+     * Observe all messages received from the service, before they are handled.
+     */
+    public void addMessageObserver(MessageObserver observer) {
+        mMessageObservers.addIfAbsent(observer);
+    }
+
+    public void removeMessageObserver(MessageObserver observer) {
+        mMessageObservers.remove(observer);
+    }
+
+    /**
+     * Latency of each stage of the image path, frame rate and jitter.
+     */
+    public FrameMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Pool recycling the bitmaps sent to Listener.onNewProcessedImage(), see BitmapPool for the ownership rules.
+     */
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
+    /**
+     * Statistics about the image path, for example the frame counters or the main thread time per frame.
+     */
+    public FrameStats getStats() {
+        return mStats;
     }
 
     /**
@@ -140,28 +576,141 @@ public class ApiHelper {
         if (mBound)
             return;
         Log.v(TAG, "Connecting to Clarius service, package: " + packageName + " class: " + serviceName);
+        mSupervisor.cancel();
+        mReconnecting = false;
+        if (mBindingActive)
+            mContext.unbindService(mConnection);
+        mComponent = new ComponentName(packageName, serviceName);
+        StartupTrace.mark(StartupTrace.BIND_REQUESTED);
+        mBindingActive = bind();
+        if (!mBindingActive)
+            reportError("Could not find the MobileApi service. Check the package name in the gradle.properties file.");
+    }
+
+    /**
+     * Whether connect() was called and the service is bound or being bound, until disconnect().
+     */
+    public boolean isBindingActive() {
+        return mBindingActive;
+    }
+
+    /**
+     * Prepare the image path for this configuration ahead of the first frame, can be called from any thread.
+     * <p>
+     * Bitmaps and luma frames with the configured size are allocated and the image codecs are loaded,
+     * so the first frame does not pay for them. Blocks for a few milliseconds: call it off the main thread.
+     */
+    public void prewarm(ImageConfig config) {
+        Size size = config.bundle().getSize(MobileApi.KEY_IMAGE_SIZE);
+        if (null == size)
+            return;
+        mBitmapPool.preallocate(size.getWidth(), size.getHeight(), PREWARM_BITMAPS);
+        LumaFrame[] lumas = new LumaFrame[PREWARM_BITMAPS];
+        for (int i = 0; i < lumas.length; ++i)
+            lumas[i] = mLumaPool.acquire(size.getWidth(), size.getHeight());
+        for (LumaFrame luma : lumas)
+            luma.release();
+        FrameDecoder.warmUp();
+    }
+
+    private boolean bind() {
         Intent i = new Intent();
-        i.setComponent(new ComponentName(packageName, serviceName));
+        i.setComponent(mComponent);
         boolean res = mContext.bindService(i, mConnection, Context.BIND_AUTO_CREATE);
-        if (!res) {
-            reportError("Could not find the MobileApi service. Check the package name in the gradle.properties file.");
+        if (!res)
+            mContext.unbindService(mConnection);
+        return res;
+    }
+
+    /**
+     * Bind again after losing the service, called by the supervisor on the main thread.
+     */
+    private void rebind() {
+        if (mBound || !mReconnecting)
+            return;
+        Log.v(TAG, "Reconnecting to Clarius service");
+        if (mBindingActive)
             mContext.unbindService(mConnection);
+        mBindingActive = bind();
+    }
+
+    /**
+     * Reinstate the pipeline after registering again, called on the dispatch thread.
+     * <p>
+     * The dispatch and decode threads and the pools are kept during the outage, so only the image configuration
+     * needs to be sent again: it is sent first to get the first frame as soon as possible.
+     */
+    private void onReregistered() {
+        mReconnecting = false;
+        mConnected = true;
+        mSupervisor.onReconnected();
+        ImageConfig config = mLastImageConfig;
+        if (null != config)
+            mMainHandler.post(() -> {
+                try {
+                    sendImageConfig(config);
+                } catch (RemoteException e) {
+                    e.printStackTrace();
+                }
+            });
+        mChangeDetector.reset();
+        sendOnMain(this::askFreeze);
+        notifyListener(listener -> listener.onReconnecting(false));
+    }
+
+    /**
+     * The service was lost while connected, keep the pipeline and rebind if enabled, called on the main thread.
+     */
+    private void onConnectionLost() {
+        mConnected = false;
+        mRequests.failAll(new IllegalStateException("connection lost"));
+        clearState();
+        if (!mAutoReconnect || null == mComponent) {
+            notifyListener(listener -> listener.onConnected(false));
+            return;
         }
+        mReconnecting = true;
+        mSupervisor.onConnectionLost();
+        notifyListener(listener -> listener.onReconnecting(true));
     }
 
     /**
      * Disconnect from the service: unregister our messenger and unbind. Does nothing if not bound.
      */
     public void disconnect() {
-        if (!mBound)
+        mSupervisor.cancel();
+        mReconnecting = false;
+        if (!mBound && !mBindingActive)
             return;
         if (mRegistered)
             unregisterMessenger();
         Log.v(TAG, "Disconnecting from Clarius service");
-        mContext.unbindService(mConnection);
+        if (mBindingActive)
+            mContext.unbindService(mConnection);
+        mBindingActive = false;
         mBound = false;
-        if (null != mListener)
-            mListener.onConnected(false);
+        mRegistered = false;
+        mConnected = false;
+        mLastImageConfig = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1)
+            releaseFrameRing(mFrameRing);
+        mFrameRing = null;
+        mRequests.failAll(new IllegalStateException("disconnected"));
+        clearState();
+        stopDispatch();
+        notifyListener(listener -> listener.onConnected(false));
+    }
+
+    /**
+     * Forget the scanner state on the dispatch thread, after the updates already queued, so subscribers are always
+     * notified there. Cleared directly when dispatching is stopped, then no value can be left to notify.
+     */
+    private void clearState() {
+        Handler handler = mDispatchHandler;
+        if (null != handler)
+            handler.post(mState::clear);
+        else
+            mState.clear();
     }
 
     /**
@@ -172,119 +721,269 @@ public class ApiHelper {
     public void sendImageConfig(ImageConfig config) throws RemoteException {
         if (!mBound)
             return;
+        mLastImageConfig = config;
+        StartupTrace.mark(StartupTrace.IMAGE_CONFIG_SENT);
         Log.v(TAG, "Sending image config"
             + " " + config.bundle().getSize(MobileApi.KEY_IMAGE_SIZE)
             + " " + config.bundle().getString(MobileApi.KEY_COMPRESSION_TYPE)
             + " " + config.bundle().getInt(MobileApi.KEY_COMPRESSION_QUALITY)
             + " separateOverlay=" + config.bundle().getBoolean(MobileApi.KEY_SEPARATE_OVERLAYS)
         );
+        if (mSharedMemoryTransport && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1)
+            config = config.copy().setSharedFrameRing(frameRingFor(config));
+        Handler handler = mDispatchHandler;
+        if (!config.bundle().getBoolean(MobileApi.KEY_SEPARATE_OVERLAYS) && null != handler)
+            handler.post(this::clearOverlay);
         Message msg = Message.obtain(null, MobileApi.MSG_CONFIGURE_IMAGE);
         msg.replyTo = mMessenger;
         msg.setData(config.bundle());
         mService.send(msg);
     }
 
-    public void sendPatientInfo(String patientId, String patientName) throws RemoteException {
-        if (!mBound)
+    /**
+     * Reuse the frame ring if large enough for the configuration, or replace it.
+     * <p>
+     * The previous ring is released on the dispatch thread after the messages already queued.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.O_MR1)
+    private SharedFrameRing frameRingFor(ImageConfig config) throws RemoteException {
+        Size size = config.bundle().getSize(MobileApi.KEY_IMAGE_SIZE);
+        long rawBytes = null == size ? 0 : (long) size.getWidth() * size.getHeight() * FrameFormat.RAW_BYTES_PER_PIXEL;
+        int maxFrameBytes = (int) Math.min(Integer.MAX_VALUE, rawBytes + FRAME_RING_MARGIN_BYTES);
+        SharedFrameRing ring = mFrameRing;
+        if (null != ring && ring.getMaxFrameBytes() >= maxFrameBytes)
+            return ring;
+        try {
+            mFrameRing = SharedFrameRing.create(FRAME_RING_SLOTS, maxFrameBytes);
+        } catch (ErrnoException | IllegalArgumentException e) {
+            throw new RemoteException("Cannot allocate the frame ring: " + e);
+        }
+        releaseFrameRing(ring);
+        return mFrameRing;
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.O_MR1)
+    private void releaseFrameRing(SharedFrameRing ring) {
+        if (null == ring)
             return;
+        Handler handler = mDispatchHandler;
+        if (null != handler)
+            handler.post(ring::close);
+        else
+            ring.close();
+    }
+
+    /**
+     * Send the patient info to the service. Does nothing if not bound.
+     * <p>
+     * The future completes with the MSG_RETURN_STATUS reply: with a service sending no status for this message, it
+     * fails with a TimeoutException after the request timeout, see setRequestTimeout().
+     *
+     * @return The return status, or a failed future if not bound, the service returned an error or did not reply.
+     */
+    public CompletableFuture<Integer> sendPatientInfo(String patientId, String patientName) throws RemoteException {
+        if (!mBound)
+            return notBound();
         Log.v(TAG, "Sending patient info: patient id: " + patientId + " patient name: " + patientName);
         Message msg = Message.obtain(null, MobileApi.MSG_SET_PATIENT_INFO);
-        msg.replyTo = mMessenger;
         Bundle bundle = new Bundle();
         bundle.putParcelable(MobileApi.KEY_PATIENT_INFO, new PatientInfo(patientId, patientName));
         msg.setData(bundle);
-        mService.send(msg);
+        return request(msg, MobileApi.MSG_RETURN_STATUS, ApiHelper::getReturnStatus);
     }
 
     /**
-     * Ask the service to give us the current scan area geometry. Does nothing if not bound.
+     * Ask the service to give us the current scan area geometry, also notified with Listener.onScanAreaReturned().
+     * Does nothing if not bound.
+     *
+     * @return The scan area, or a failed future if not bound.
      */
-    public void askScanArea() throws RemoteException {
+    public CompletableFuture<Rect> askScanArea() throws RemoteException {
         if (!mBound)
-            return;
+            return notBound();
         Log.v(TAG, "Asking scan area");
-        Message msg = Message.obtain(null, MobileApi.MSG_GET_SCAN_AREA);
-        msg.replyTo = mMessenger;
-        mService.send(msg);
+        return request(Message.obtain(null, MobileApi.MSG_GET_SCAN_AREA), MobileApi.MSG_RETURN_SCAN_AREA,
+            msg -> parcelable(msg, null, MobileApi.KEY_B_IMAGE_AREA));
     }
 
     /**
-     * Ask the service to give us the current probe info. Does nothing if not bound.
+     * Ask the service to give us the current probe info, also notified with Listener.onProbeInfoReceived().
+     * Does nothing if not bound.
+     *
+     * @return The probe info, or a failed future if not bound.
      */
-    public void askProbeInfo() throws RemoteException {
+    public CompletableFuture<ProbeInfo> askProbeInfo() throws RemoteException {
         if (!mBound)
-            return;
+            return notBound();
         Log.v(TAG, "Asking probe info");
-        Message msg = Message.obtain(null, MobileApi.MSG_GET_PROBE_INFO);
-        msg.replyTo = mMessenger;
-        mService.send(msg);
+        return request(Message.obtain(null, MobileApi.MSG_GET_PROBE_INFO), MobileApi.MSG_RETURN_PROBE_INFO,
+            msg -> parcelable(msg, ProbeInfo.class, MobileApi.KEY_PROBE_INFO));
     }
 
     /**
-     * Ask the service to give us the current patient info. Does nothing if not bound.
+     * Ask the service to give us the current patient info, also notified with Listener.onPatientInfoReceived().
+     * Does nothing if not bound.
+     *
+     * @return The patient info, or a failed future if not bound.
      */
-    public void askPatientInfo() throws RemoteException {
+    public CompletableFuture<PatientInfo> askPatientInfo() throws RemoteException {
         if (!mBound)
-            return;
+            return notBound();
         Log.v(TAG, "Asking patient info");
-        Message msg = Message.obtain(null, MobileApi.MSG_GET_PATIENT_INFO);
-        msg.replyTo = mMessenger;
-        mService.send(msg);
+        return request(Message.obtain(null, MobileApi.MSG_GET_PATIENT_INFO), MobileApi.MSG_RETURN_PATIENT_INFO,
+            msg -> parcelable(msg, PatientInfo.class, MobileApi.KEY_PATIENT_INFO));
     }
 
     /**
-     * Ask the service to give us the current freeze state. Does nothing if not bound.
+     * Ask the service to give us the current freeze state, also notified with Listener.onFrozenReturned().
+     * Does nothing if not bound.
+     *
+     * @return Whether imaging is frozen, or a failed future if not bound.
      */
-    public void askFreeze() throws RemoteException {
+    public CompletableFuture<Boolean> askFreeze() throws RemoteException {
         if (!mBound)
-            return;
+            return notBound();
         Log.v(TAG, "Asking freeze state");
-        Message msg = Message.obtain(null, MobileApi.MSG_GET_FREEZE);
-        msg.replyTo = mMessenger;
-        mService.send(msg);
+        return request(Message.obtain(null, MobileApi.MSG_GET_FREEZE), MobileApi.MSG_RETURN_FREEZE,
+            msg -> msg.getData().getBoolean(MobileApi.KEY_FREEZE));
     }
 
     /**
-     * Ask the service to give us the current imaging depth. Does nothing if not bound.
+     * Ask the service to give us the current imaging depth, also notified with Listener.onDepthReturned().
+     * Does nothing if not bound.
+     *
+     * @return The depth in cm, or a failed future if not bound.
      */
-    public void askDepth() throws RemoteException {
+    public CompletableFuture<Double> askDepth() throws RemoteException {
         if (!mBound)
-            return;
+            return notBound();
         Log.v(TAG, "Asking imaging depth");
-        Message msg = Message.obtain(null, MobileApi.MSG_GET_DEPTH);
-        msg.replyTo = mMessenger;
-        mService.send(msg);
+        return request(Message.obtain(null, MobileApi.MSG_GET_DEPTH), MobileApi.MSG_RETURN_DEPTH,
+            msg -> msg.getData().getDouble(MobileApi.KEY_DEPTH_CM));
     }
 
     /**
-     * Ask the service to give us the current imaging gain. Does nothing if not bound.
+     * Ask the service to give us the current imaging gain, also notified with Listener.onGainReturned().
+     * Does nothing if not bound.
+     *
+     * @return The gain, or a failed future if not bound.
      */
-    public void askGain() throws RemoteException {
+    public CompletableFuture<Double> askGain() throws RemoteException {
         if (!mBound)
-            return;
+            return notBound();
         Log.v(TAG, "Asking imaging gain");
-        Message msg = Message.obtain(null, MobileApi.MSG_GET_GAIN);
-        msg.replyTo = mMessenger;
-        mService.send(msg);
+        return request(Message.obtain(null, MobileApi.MSG_GET_GAIN), MobileApi.MSG_RETURN_GAIN,
+            msg -> msg.getData().getDouble(MobileApi.KEY_GAIN));
     }
 
     /**
      * Run a user function on the scanner. Does nothing if not bound.
+     * <p>
+     * Like sendPatientInfo(), the future only completes with the MSG_RETURN_STATUS reply, see setRequestTimeout().
      *
      * @param fn The identifier of the function to run, one of MobileApi.USER_FN_* constants.
      * @param param Parameter for user functions accepting a parameter.
+     * @return The return status, or a failed future if not bound, the service returned an error or did not reply.
      */
-    public void userFn(String fn, double param) throws RemoteException {
+    public CompletableFuture<Integer> userFn(String fn, double param) throws RemoteException {
         if (!mBound)
-            return;
+            return notBound();
         Log.v(TAG, "Running user function: " + fn + "(" + param + ")");
         Message msg = Message.obtain(null, MobileApi.MSG_USER_FN);
-        msg.replyTo = mMessenger;
         Bundle data = new Bundle();
         data.putString(MobileApi.KEY_USER_FN, fn);
         data.putDouble(MobileApi.KEY_USER_PARAM, param);
         msg.setData(data);
-        mService.send(msg);
+        return request(msg, MobileApi.MSG_RETURN_STATUS, ApiHelper::getReturnStatus);
+    }
+
+    /**
+     * The imaging depth from the state cache if received at most maxAgeMs ago, otherwise asked to the service.
+     */
+    public CompletableFuture<Double> getDepth(long maxAgeMs) throws RemoteException {
+        return cachedOrAsk(StateCache.DEPTH, maxAgeMs, this::askDepth);
+    }
+
+    /**
+     * The imaging gain from the state cache if received at most maxAgeMs ago, otherwise asked to the service.
+     */
+    public CompletableFuture<Double> getGain(long maxAgeMs) throws RemoteException {
+        return cachedOrAsk(StateCache.GAIN, maxAgeMs, this::askGain);
+    }
+
+    /**
+     * The freeze state from the state cache if received at most maxAgeMs ago, otherwise asked to the service.
+     */
+    public CompletableFuture<Boolean> getFreeze(long maxAgeMs) throws RemoteException {
+        return cachedOrAsk(StateCache.FREEZE, maxAgeMs, this::askFreeze);
+    }
+
+    /**
+     * The scan area from the state cache if received at most maxAgeMs ago, otherwise asked to the service.
+     */
+    public CompletableFuture<Rect> getScanArea(long maxAgeMs) throws RemoteException {
+        return cachedOrAsk(StateCache.SCAN_AREA, maxAgeMs, this::askScanArea);
+    }
+
+    /**
+     * The probe info from the state cache if received at most maxAgeMs ago, otherwise asked to the service.
+     * The probe info has no change event: it is only cached from the replies.
+     */
+    public CompletableFuture<ProbeInfo> getProbeInfo(long maxAgeMs) throws RemoteException {
+        return cachedOrAsk(StateCache.PROBE_INFO, maxAgeMs, this::askProbeInfo);
+    }
+
+    private interface Request<T> {
+        CompletableFuture<T> send() throws RemoteException;
+    }
+
+    /**
+     * Send a request from the main thread, for requests made on the dispatch thread: the connection state is
+     * changed on the main thread, and the service may be disconnected meanwhile.
+     */
+    private <T> void sendOnMain(Request<T> request) {
+        mMainHandler.post(() -> {
+            try {
+                request.send();
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    private <T> CompletableFuture<T> cachedOrAsk(StateCache.Field<T> field, long maxAgeMs, Request<T> request) throws RemoteException {
+        T value = mState.getFresh(field, maxAgeMs);
+        if (null != value)
+            return CompletableFuture.completedFuture(value);
+        return request.send();
+    }
+
+    /**
+     * Send a request tracked until its reply, see PendingRequests.
+     *
+     * @param replyWhat The reply completing the request, MSG_RETURN_STATUS for requests only returning a status.
+     * @param parser Extract the result from the reply, called on the dispatch thread.
+     */
+    private <T> CompletableFuture<T> request(Message msg, int replyWhat, Function<Message, T> parser) throws RemoteException {
+        msg.replyTo = mMessenger;
+        CompletableFuture<T> future = mRequests.add(msg, replyWhat, parser);
+        int param = getCallbackParam(msg);
+        try {
+            mService.send(msg);
+        } catch (RemoteException e) {
+            mRequests.cancel(param, e);
+            throw e;
+        }
+        Handler handler = mDispatchHandler;
+        if (null != handler)
+            handler.postDelayed(() -> mRequests.expire(param), mRequestTimeoutMs);
+        return future;
+    }
+
+    private static <T> CompletableFuture<T> notBound() {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(new IllegalStateException("not bound"));
+        return future;
     }
 
     /**
@@ -305,38 +1004,63 @@ public class ApiHelper {
         mService.send(reply);
     }
 
+    /**
+     * Helper to convert a parcelable from a Bundle.
+     */
+    private static <T> T parcelable(Message msg, Class<T> klass, String field) {
+        Bundle data = msg.getData();
+        if (null != klass)
+            data.setClassLoader(klass.getClassLoader());
+        T info = data.getParcelable(field);
+        if (null == info)
+            throw new AssertionError("Field missing '" + field + "'");
+        return info;
+    }
+
     /**
      * Helper to convert a parcelable from a Bundle and send it to the observer.
      */
     private <T> void emit(BiConsumer<Listener, T> fn, Message msg, Class<T> klass, String field) {
         if (null != mListener) {
-            Bundle data = msg.getData();
-            if (null != klass)
-                data.setClassLoader(klass.getClassLoader());
-            T info = data.getParcelable(field);
-            if (null == info)
-                throw new AssertionError("Field missing '" + field + "'");
-            fn.accept(mListener, info);
+            T info = parcelable(msg, klass, field);
+            notifyListener(listener -> fn.accept(listener, info));
         }
     }
 
     private Map<Integer, MessageHandler> makeMessageHandlers() {
         HashMap<Integer, MessageHandler> ret = new HashMap<>();
         ret.put(MobileApi.MSG_FREEZE_CHANGED, (Message msg) -> {
-            if (null != mListener) mListener.onFrozenChanged(msg.getData().getBoolean(MobileApi.KEY_FREEZE));
+            boolean frozen = msg.getData().getBoolean(MobileApi.KEY_FREEZE);
+            mState.put(StateCache.FREEZE, frozen);
+            setFrozen(frozen);
+            notifyListener(listener -> listener.onFrozenChanged(frozen));
         });
         ret.put(MobileApi.MSG_DEPTH_CHANGED, (Message msg) -> {
-            if (null != mListener) mListener.onDepthChanged(msg.getData().getDouble(MobileApi.KEY_DEPTH_CM));
+            double cm = msg.getData().getDouble(MobileApi.KEY_DEPTH_CM);
+            mState.put(StateCache.DEPTH, cm);
+            notifyListener(listener -> listener.onDepthChanged(cm));
         });
         ret.put(MobileApi.MSG_GAIN_CHANGED, (Message msg) -> {
-            if (null != mListener) mListener.onGainChanged(msg.getData().getDouble(MobileApi.KEY_GAIN));
+            double gain = msg.getData().getDouble(MobileApi.KEY_GAIN);
+            mState.put(StateCache.GAIN, gain);
+            notifyListener(listener -> listener.onGainChanged(gain));
         });
         ret.put(MobileApi.MSG_RETURN_STATUS, (Message msg) -> {
             int param = getCallbackParam(msg);
             int status = getReturnStatus(msg);
             Log.v(TAG, "Return status: " + status + ", param: " + param);
-            if (null != mListener && MobileApi.MSG_REGISTER_CLIENT == param) {
-                mListener.onConnected(0 == status);
+            mRequests.onStatus(msg, status);
+            if (MobileApi.MSG_REGISTER_CLIENT == param) {
+                if (0 == status)
+                    StartupTrace.mark(StartupTrace.REGISTERED);
+                if (0 == status && mReconnecting) {
+                    onReregistered();
+                } else {
+                    mConnected = 0 == status;
+                    notifyListener(listener -> listener.onConnected(0 == status));
+                }
+                if (0 == status && DecodeMode.SCAN_AREA == mDecodeMode)
+                    sendOnMain(this::askScanArea);
             }
         });
         ret.put(MobileApi.MSG_NEW_PROCESSED_IMAGE, this::onImageUpdated);
@@ -344,35 +1068,55 @@ public class ApiHelper {
             emit(Listener::onButtonEvent, msg, ButtonInfo.class, MobileApi.KEY_BUTTON_INFO);
         });
         ret.put(MobileApi.MSG_SCAN_AREA_CHANGED, (Message msg) -> {
+            onScanArea(msg);
+            mState.put(StateCache.SCAN_AREA, parcelable(msg, null, MobileApi.KEY_B_IMAGE_AREA));
             emit(Listener::onScanAreaChanged, msg, null, MobileApi.KEY_B_IMAGE_AREA);
         });
         ret.put(MobileApi.MSG_RETURN_SCAN_AREA, (Message msg) -> {
+            onScanArea(msg);
+            mState.put(StateCache.SCAN_AREA, parcelable(msg, null, MobileApi.KEY_B_IMAGE_AREA));
             emit(Listener::onScanAreaReturned, msg, null, MobileApi.KEY_B_IMAGE_AREA);
+            mRequests.onReply(msg);
         });
         ret.put(MobileApi.MSG_RETURN_PROBE_INFO, (Message msg) -> {
+            mState.put(StateCache.PROBE_INFO, parcelable(msg, ProbeInfo.class, MobileApi.KEY_PROBE_INFO));
             emit(Listener::onProbeInfoReceived, msg, ProbeInfo.class, MobileApi.KEY_PROBE_INFO);
+            mRequests.onReply(msg);
         });
         ret.put(MobileApi.MSG_RETURN_PATIENT_INFO, (Message msg) -> {
             emit(Listener::onPatientInfoReceived, msg, PatientInfo.class, MobileApi.KEY_PATIENT_INFO);
+            mRequests.onReply(msg);
         });
         ret.put(MobileApi.MSG_NO_LICENSE, (Message msg) -> {
             reportError("No license");
         });
         ret.put(MobileApi.MSG_RETURN_FREEZE, (Message msg) -> {
-            if (null != mListener) mListener.onFrozenReturned(msg.getData().getBoolean(MobileApi.KEY_FREEZE));
+            boolean frozen = msg.getData().getBoolean(MobileApi.KEY_FREEZE);
+            mState.put(StateCache.FREEZE, frozen);
+            setFrozen(frozen);
+            notifyListener(listener -> listener.onFrozenReturned(frozen));
+            mRequests.onReply(msg);
         });
         ret.put(MobileApi.MSG_RETURN_DEPTH, (Message msg) -> {
-            if (null != mListener) mListener.onDepthReturned(msg.getData().getDouble(MobileApi.KEY_DEPTH_CM));
+            double cm = msg.getData().getDouble(MobileApi.KEY_DEPTH_CM);
+            mState.put(StateCache.DEPTH, cm);
+            notifyListener(listener -> listener.onDepthReturned(cm));
+            mRequests.onReply(msg);
         });
         ret.put(MobileApi.MSG_RETURN_GAIN, (Message msg) -> {
-            if (null != mListener) mListener.onGainReturned(msg.getData().getDouble(MobileApi.KEY_GAIN));
+            double gain = msg.getData().getDouble(MobileApi.KEY_GAIN);
+            mState.put(StateCache.GAIN, gain);
+            notifyListener(listener -> listener.onGainReturned(gain));
+            mRequests.onReply(msg);
         });
         ret.put(MobileApi.MSG_ERROR, (Message msg) -> {
             String error = msg.getData().getString(MobileApi.KEY_ERROR_MESSAGE, "<unknown>");
             reportError("Service error: " + error);
         });
         ret.put(MobileApi.MSG_LICENSE_CHANGED, (Message msg) -> {
-            if (null != mListener) mListener.onLicenseChanged(msg.arg1 == 1);
+            boolean hasLicense = msg.arg1 == 1;
+            mState.put(StateCache.LICENSE, hasLicense);
+            notifyListener(listener -> listener.onLicenseChanged(hasLicense));
         });
         ret.put(MobileApi.MSG_RAW_DATA_AVAILABLE, this::onRawDataAvailable);
         ret.put(MobileApi.MSG_RAW_DATA_COPIED, this::onRawDataCopied);
@@ -396,6 +1140,7 @@ public class ApiHelper {
             if (service == null)
                 throw new AssertionError("Received null service");
             Log.v(TAG, "Service connected");
+            StartupTrace.mark(StartupTrace.SERVICE_CONNECTED);
             mService = new Messenger(service);
             mBound = true;
             registerMessenger();
@@ -408,6 +1153,26 @@ public class ApiHelper {
             Log.v(TAG, "Service disconnected");
             mService = null;
             mBound = false;
+            mRegistered = false;
+            onConnectionLost();
+        }
+
+        @Override
+        public void onBindingDied(ComponentName name) {
+            // This is called when the binding will not come back by itself, for example when the Clarius App
+            // was updated: it must be unbound, and bound again if reconnecting.
+            Log.v(TAG, "Binding died");
+            mContext.unbindService(mConnection);
+            mBindingActive = false;
+            if (mReconnecting)
+                return;
+            // usually follows onServiceDisconnected(), which already handled the loss
+            boolean lost = mBound;
+            mService = null;
+            mBound = false;
+            mRegistered = false;
+            if (lost)
+                onConnectionLost();
         }
 
         @Override
@@ -415,6 +1180,9 @@ public class ApiHelper {
             // This is called when the service was not able to start,
             // for example when the Clarius App is not running.
             mContext.unbindService(mConnection);
+            mBindingActive = false;
+            if (mReconnecting)
+                return;
             reportError("Cannot bind to '" + name.getShortClassName() + "', is the Clarius App running?");
         }
     };
@@ -429,7 +1197,7 @@ public class ApiHelper {
         if (!mBound)
             return;
         Log.v(TAG, "Registering messenger");
-        mMessenger = new Messenger(new Handler(Looper.getMainLooper(), new IncomingHandler()));
+        startDispatch();
         Message msg = Message.obtain(null, MobileApi.MSG_REGISTER_CLIENT);
         msg.replyTo = mMessenger;
         setCallbackParam(msg, MobileApi.MSG_REGISTER_CLIENT);
@@ -441,6 +1209,55 @@ public class ApiHelper {
         }
     }
 
+    /**
+     * Select the looper handling incoming messages, start the dispatch thread if needed.
+     */
+    private Looper startDispatchLooper() {
+        if (null != mDispatchLooper)
+            return mDispatchLooper;
+        if (DispatchMode.MAIN_THREAD == mDispatchMode)
+            return Looper.getMainLooper();
+        if (null == mDispatchThread) {
+            mDispatchThread = new HandlerThread("MobileApi/Dispatch", Process.THREAD_PRIORITY_DISPLAY);
+            mDispatchThread.start();
+        }
+        return mDispatchThread.getLooper();
+    }
+
+    /**
+     * Start handling incoming messages and decoding frames. Does nothing if already started.
+     */
+    private synchronized void startDispatch() {
+        if (null != mDispatchHandler)
+            return;
+        mPipeline.start();
+        mDispatchHandler = new Handler(startDispatchLooper(), new IncomingHandler());
+        mMessenger = new Messenger(mDispatchHandler);
+    }
+
+    /**
+     * Stop decoding frames and the dispatch thread, pending messages are still handled.
+     */
+    private synchronized void stopDispatch() {
+        mPipeline.stop();
+        mDispatchHandler = null;
+        if (null != mDispatchThread) {
+            mDispatchThread.quitSafely();
+            mDispatchThread = null;
+        }
+    }
+
+    /**
+     * Handle a message as if it was received from the service, for example to replay a recorded session.
+     * <p>
+     * The message goes through the same dispatch and decoding path as live messages.
+     * Dispatching is started if needed, and stopped by disconnect().
+     */
+    public void inject(Message msg) {
+        startDispatch();
+        mDispatchHandler.sendMessage(msg);
+    }
+
     /**
      * Remove our own messenger from the service to stop receiving messages from the service.
      */
@@ -459,10 +1276,59 @@ public class ApiHelper {
     }
 
     /**
-     * Extract the image data received from the service.
+     * Switch the image pipeline between running and frozen, called on the dispatch thread.
+     * <p>
+     * When frozen, unused bitmaps are released down to the floor, and so is the bitmap kept to re-emit unchanged frames.
+     * The decode thread blocks on its empty queue without waking up.
+     * When running again, bitmaps with the last decoded size are allocated before the first live frame arrives,
+     * and the change detector is reset so the first live frame is always decoded.
      */
-    private void onImageUpdated(Message msg) {
-        if (null == mListener)
+    private void setFrozen(boolean frozen) {
+        if (frozen == mFrozen)
+            return;
+        mFrozen = frozen;
+        if (frozen) {
+            keepLastBitmap(null);
+            mBitmapPool.trim(mFrozenPoolFloor);
+            mLumaPool.trim(mFrozenPoolFloor);
+            Log.v(TAG, "Frozen, " + mBitmapPool.getFreeCount() + " unused bitmaps kept");
+        } else {
+            mChangeDetector.reset();
+            int width = mLastDecodedWidth;
+            int height = mLastDecodedHeight;
+            if (width > 0 && height > 0)
+                mBitmapPool.preallocate(width, height, PREWARM_BITMAPS);
+            Log.v(TAG, "Running, " + mBitmapPool.getFreeCount() + " unused bitmaps ready");
+        }
+    }
+
+    /**
+     * Track the scan area for DecodeMode.SCAN_AREA, called on the dispatch thread.
+     * <p>
+     * Bitmaps with the new area size are allocated here, before the first frame using it reaches the decode thread.
+     */
+    private void onScanArea(Message msg) {
+        Rect area = msg.getData().getParcelable(MobileApi.KEY_B_IMAGE_AREA);
+        if (null == area || area.isEmpty() || area.equals(mScanArea))
+            return;
+        mScanArea = new Rect(area);
+        if (DecodeMode.SCAN_AREA == mDecodeMode) {
+            mBitmapPool.preallocate(area.width(), area.height(), PREWARM_BITMAPS);
+            if (null != mCurrentOverlay)
+                notifyOverlay();
+        }
+    }
+
+    /**
+     * Extract the image data received from the service and hand it to the decode thread.
+     */
+    private void onImageUpdated(Message msg) throws InterruptedException {
+        long start = System.nanoTime();
+        StartupTrace.mark(StartupTrace.FIRST_FRAME_RECEIVED);
+        mSupervisor.onFrame();
+        // without a listener, for example while the activity is recreated, the luma listeners and the frame observers
+        // still get the frames: the bitmap is only dropped when delivered, see deliver()
+        if (null == mListener && mLumaListeners.isEmpty() && mFrameObservers.isEmpty())
             return;
         Bundle data = msg.getData();
         data.setClassLoader(ProcessedImageInfo.class.getClassLoader());
@@ -471,13 +1337,231 @@ public class ApiHelper {
             throw new AssertionError("image info missing");
         data.setClassLoader(PosInfo.class.getClassLoader());
         ArrayList<PosInfo> posInfo = data.getParcelableArrayList(MobileApi.KEY_POS_INFO);
-        byte[] imageData = data.getByteArray(MobileApi.KEY_IMAGE_DATA);
-        if (imageData == null)
-            throw new AssertionError("image data missing");
-        Bitmap bitmap = BitmapFactory.decodeByteArray(imageData, 0, imageData.length);
-        if (bitmap == null)
-            throw new AssertionError("bad image data");
-        mListener.onNewProcessedImage(bitmap, info, posInfo);
+        Frame frame;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1 && SharedFrameRing.isShared(data)) {
+            frame = readSharedFrame(data, info, posInfo);
+            mStats.addSharedFrame(null == frame);
+            if (null == frame) {
+                Log.w(TAG, "Shared frame overwritten or from a released ring, skipping");
+                return;
+            }
+        } else {
+            byte[] imageData = data.getByteArray(MobileApi.KEY_IMAGE_DATA);
+            if (imageData == null)
+                throw new AssertionError("image data missing");
+            frame = new Frame(++mFrameSequence, info, posInfo, imageData);
+        }
+        // timestamped before any observer sees the frame, overlays included
+        frame.mWhenNanos = msg.getWhen() * 1000000;
+        frame.mDispatchNanos = start;
+        if (info.overlay) {
+            for (FrameObserver observer : mFrameObservers)
+                observer.onFrame(frame);
+            onOverlay(frame);
+            frame.release();
+            return;
+        }
+        if (DecodeMode.SCAN_AREA == mDecodeMode)
+            frame.mRegion = mScanArea;
+        boolean unchanged = isUnchanged(frame);
+        frame.mSubmitNanos = System.nanoTime();
+        mStats.addDispatchTime(frame.mSubmitNanos - start);
+        mMetrics.recordDispatched(frame);
+        for (FrameObserver observer : mFrameObservers)
+            observer.onFrame(frame);
+        if (unchanged) {
+            mStats.addUnchangedFrame();
+            if (!mReemitUnchanged || reemit(frame)) {
+                frame.release();
+                return;
+            }
+        }
+        // the pipeline takes over the reference
+        mPipeline.submit(frame);
+    }
+
+    /**
+     * Copy a frame out of the shared frame ring into a pooled buffer, on the dispatch thread.
+     *
+     * @return The frame with one reference owned by the caller, or null if it was overwritten or from a released ring.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.O_MR1)
+    private Frame readSharedFrame(Bundle data, ProcessedImageInfo info, ArrayList<PosInfo> posInfo) {
+        SharedFrameRing ring = mFrameRing;
+        int length = null == ring ? -1 : ring.peekLength(data);
+        if (length < 0)
+            return null;
+        byte[] buffer = mFrameBuffers.acquire(length);
+        if (!ring.readInto(data, buffer, length)) {
+            mFrameBuffers.recycle(buffer);
+            return null;
+        }
+        return new Frame(++mFrameSequence, info, posInfo, buffer, length, mFrameBuffers);
+    }
+
+    /**
+     * Handle an overlay layer, received separately from the B-image with separate overlays, on the dispatch thread.
+     * <p>
+     * The overlay is only decoded when its content was not seen recently, see OverlayCache, and the listener is only
+     * notified when it differs from the current one. Overlays are rare enough to be decoded here rather than compete
+     * with the B-images in the frame queue.
+     */
+    private void onOverlay(Frame frame) {
+        long start = System.nanoTime();
+        Bitmap overlay = mOverlayCache.get(frame.mData, frame.mLength, frame.mInfo.width, frame.mInfo.height);
+        mStats.addOverlay(mOverlayCache.wasDecoded(), System.nanoTime() - start);
+        if (null == overlay || overlay == mCurrentOverlay)
+            return;
+        mCurrentOverlay = overlay;
+        mCurrentOverlayInfo = frame.mInfo;
+        notifyOverlay();
+    }
+
+    /**
+     * Notify the current overlay with the region matching the decoded B-images, on the dispatch thread.
+     */
+    private void notifyOverlay() {
+        Bitmap overlay = mCurrentOverlay;
+        ProcessedImageInfo info = mCurrentOverlayInfo;
+        Rect region = null;
+        if (DecodeMode.SCAN_AREA == mDecodeMode && null != mScanArea) {
+            // clipped like FrameDecoder.decodeRegion()
+            region = new Rect(mScanArea);
+            if (!region.intersect(0, 0, overlay.getWidth(), overlay.getHeight()))
+                region = null;
+        }
+        Rect overlayRegion = region;
+        notifyListener(listener -> listener.onNewOverlay(overlay, overlayRegion, info));
+    }
+
+    /**
+     * Remove the overlay layer when overlays are no longer separate, on the dispatch thread.
+     */
+    private void clearOverlay() {
+        mOverlayCache.clear();
+        if (null == mCurrentOverlay)
+            return;
+        mCurrentOverlay = null;
+        mCurrentOverlayInfo = null;
+        notifyListener(listener -> listener.onNewOverlay(null, null, null));
+    }
+
+    /**
+     * Compare the frame with the previous one, on the dispatch thread.
+     */
+    private boolean isUnchanged(Frame frame) {
+        FrameChangeDetector.Mode mode = mChangeDetection;
+        if (FrameChangeDetector.Mode.OFF == mode)
+            return false;
+        if (frame.mRegion != mChangeDetectorRegion) {
+            // the same data decodes to another bitmap
+            mChangeDetectorRegion = frame.mRegion;
+            mChangeDetector.reset();
+        }
+        mChangeDetector.setMode(mode);
+        return mChangeDetector.isUnchanged(frame.mData, frame.mLength, frame.mInfo.width, frame.mInfo.height);
+    }
+
+    /**
+     * Deliver the last decoded bitmap again for an unchanged frame, without decoding.
+     *
+     * @return False if there is no bitmap to re-emit, then the frame must be decoded.
+     */
+    private boolean reemit(Frame frame) {
+        Bitmap bitmap;
+        synchronized (mLastBitmapLock) {
+            bitmap = mLastBitmap;
+            if (null != bitmap)
+                mBitmapPool.retain(bitmap);
+        }
+        if (null == bitmap)
+            return false;
+        frame.mDecodedNanos = frame.mSubmitNanos;
+        deliver(frame, bitmap);
+        return true;
+    }
+
+    /**
+     * Retain the bitmap to re-emit it and release the previous one, or release the previous one if null.
+     */
+    private void keepLastBitmap(Bitmap bitmap) {
+        Bitmap previous;
+        synchronized (mLastBitmapLock) {
+            previous = mLastBitmap;
+            if (null != bitmap)
+                mBitmapPool.retain(bitmap);
+            mLastBitmap = bitmap;
+        }
+        if (null != previous)
+            mBitmapPool.release(previous);
+    }
+
+    /**
+     * Send the decoded image to the listeners, called from the decode thread.
+     * <p>
+     * Release our reference to the pooled bitmap once the listener returns.
+     */
+    private void onFrameDecoded(Frame frame, Bitmap bitmap, LumaFrame luma) {
+        mMetrics.recordDecoded(frame);
+        StartupTrace.mark(StartupTrace.FIRST_FRAME_DECODED);
+        if (null != luma)
+            deliverLuma(frame, luma, null == bitmap);
+        if (null == bitmap)
+            return;
+        mLastDecodedWidth = bitmap.getWidth();
+        mLastDecodedHeight = bitmap.getHeight();
+        if (mReemitUnchanged)
+            keepLastBitmap(bitmap);
+        deliver(frame, bitmap);
+    }
+
+    /**
+     * Send a luma frame to the luma listeners with their executor, taking over one reference.
+     *
+     * @param recordDelivery Whether to record the delivery in the metrics, when no bitmap is delivered.
+     */
+    private void deliverLuma(Frame frame, LumaFrame luma, boolean recordDelivery) {
+        boolean first = true;
+        for (LumaRegistration registration : mLumaListeners) {
+            boolean record = recordDelivery && first;
+            first = false;
+            luma.retain();
+            registration.executor.execute(() -> {
+                if (record) {
+                    frame.mDeliveredNanos = System.nanoTime();
+                    mMetrics.recordDelivered(frame);
+                }
+                try {
+                    registration.listener.onNewLumaFrame(luma, frame.mInfo, frame.mPosInfo);
+                } finally {
+                    luma.release();
+                }
+            });
+        }
+        luma.release();
+    }
+
+    /**
+     * Send a bitmap to the listener with the listener executor, taking over one reference.
+     */
+    private void deliver(Frame frame, Bitmap bitmap) {
+        Listener listener = mListener;
+        if (null == listener) {
+            mBitmapPool.release(bitmap);
+            return;
+        }
+        mListenerExecutor.execute(() -> {
+            long deliveryStart = System.nanoTime();
+            frame.mDeliveredNanos = deliveryStart;
+            mMetrics.recordDelivered(frame);
+            try {
+                listener.onNewProcessedImage(bitmap, frame.mInfo, frame.mPosInfo);
+            } finally {
+                mBitmapPool.release(bitmap);
+            }
+            StartupTrace.mark(StartupTrace.FIRST_FRAME_DELIVERED);
+            mStats.addDeliveryTime(System.nanoTime() - deliveryStart);
+        });
     }
 
     /**
@@ -490,7 +1574,7 @@ public class ApiHelper {
         String captureId = data.getString(MobileApi.KEY_CAPTURE_ID);
         String fileName = data.getString(MobileApi.KEY_FILE_NAME);
         long sizeBytes = data.getLong(MobileApi.KEY_SIZE_BYTES);
-        mListener.onRawDataAvailable(captureId, fileName, sizeBytes);
+        notifyListener(listener -> listener.onRawDataAvailable(captureId, fileName, sizeBytes));
     }
 
     /**
@@ -502,7 +1586,7 @@ public class ApiHelper {
         Bundle data = msg.getData();
         String captureId = data.getString(MobileApi.KEY_CAPTURE_ID);
         Optional<String> error = Optional.ofNullable(data.getString(MobileApi.KEY_ERROR_MESSAGE));
-        mListener.onRawDataCopied(captureId, error);
+        notifyListener(listener -> listener.onRawDataCopied(captureId, error));
     }
 
     /**
@@ -510,10 +1594,33 @@ public class ApiHelper {
      */
     public interface Listener {
         void onConnected(boolean connected);
+
+        /**
+         * The service was lost and is being rebound (true), or is registered again (false), see setAutoReconnect().
+         * The connection is not reported lost in between, and the last image configuration is replayed.
+         */
+        void onReconnecting(boolean reconnecting);
         void onFrozenChanged(boolean frozen);
         void onDepthChanged(double cm);
         void onGainChanged(double gain);
+        /**
+         * The bitmap is recycled after this call returns, call BitmapPool.retain() to keep it longer.
+         * Call FrameMetrics.recordPresented() once the bitmap is shown to measure the presentation latency.
+         */
         void onNewProcessedImage(Bitmap imageData, ProcessedImageInfo imageInfo, ArrayList<PosInfo> posInfo);
+
+        /**
+         * The overlay layer changed, only with ImageConfig.setSeparateOverlays(true).
+         * <p>
+         * Compose it over the B-image when rendering: it changes much less often than the B-image.
+         * The bitmap is shared with the overlay cache, it must not be modified but can be kept.
+         *
+         * @param overlay The new overlay layer, or null if overlays are no longer separate.
+         * @param region The part of the overlay matching the B-images, cropped with DecodeMode.SCAN_AREA, or null
+         *               for the whole overlay. Notified again when the scan area changes.
+         * @param overlayInfo The overlay image info, or null if overlays are no longer separate.
+         */
+        void onNewOverlay(Bitmap overlay, Rect region, ProcessedImageInfo overlayInfo);
         void onButtonEvent(ButtonInfo info);
         void onScanAreaChanged(Rect rect);
         void onProbeInfoReceived(ProbeInfo probeInfo);
@@ -529,8 +1636,84 @@ public class ApiHelper {
         void onGainReturned(double gain);
     }
 
+    /**
+     * Receive the B-image as single channel frames, see addLumaListener().
+     */
+    public interface LumaListener {
+        /**
+         * The frame is recycled after this call returns, call LumaFrame.retain() to keep it longer.
+         * Its size is the one of the decoded image: the scan area with DecodeMode.SCAN_AREA.
+         */
+        void onNewLumaFrame(LumaFrame frame, ProcessedImageInfo imageInfo, ArrayList<PosInfo> posInfo);
+    }
+
+    /**
+     * What is produced from each frame.
+     */
+    public enum ImageOutput {
+        /**
+         * Bitmaps for Listener.onNewProcessedImage(), the default.
+         */
+        BITMAP,
+        /**
+         * Luma frames for the LumaListener only: raw frames are converted without going through a bitmap.
+         */
+        LUMA,
+        /**
+         * Both, the luma frames are converted from the decoded bitmaps.
+         */
+        BITMAP_AND_LUMA,
+    }
+
+    /**
+     * Where incoming messages are handled.
+     */
+    public enum DispatchMode {
+        /**
+         * On the main thread, images are still decoded on the decode thread.
+         */
+        MAIN_THREAD,
+        /**
+         * On a dedicated background thread, only the decoded results are posted to the listener.
+         */
+        BACKGROUND_THREAD,
+    }
+
+    /**
+     * What is decoded from each frame.
+     */
+    public enum DecodeMode {
+        /**
+         * The whole image, margins and overlays included.
+         */
+        FULL_FRAME,
+        /**
+         * Only the scan area (the B-image rectangle), at full resolution, for consumers analysing the image.
+         * Listener.onNewProcessedImage() then receives the scan area image, whole frames are decoded until the scan
+         * area is known.
+         */
+        SCAN_AREA,
+    }
+
+    /**
+     * Receive the frames before decoding, on the dispatch thread: implementations must return quickly.
+     * Overlay layers, received separately with separate overlays, are also observed: see ProcessedImageInfo.overlay.
+     * Frames kept after returning must be retained, their data may be recycled otherwise: see Frame.retain().
+     */
+    public interface FrameObserver {
+        void onFrame(Frame frame);
+    }
+
+    /**
+     * Receive the messages before they are handled, on the dispatch thread: implementations must return quickly
+     * and must not keep the message, which is recycled afterwards.
+     */
+    public interface MessageObserver {
+        void onMessage(Message msg);
+    }
+
     interface MessageHandler {
-        void run(Message msg);
+        void run(Message msg) throws Exception;
     }
 
     /**
@@ -541,6 +1724,8 @@ public class ApiHelper {
 
         @Override
         public boolean handleMessage(Message msg) {
+            for (MessageObserver observer : mMessageObservers)
+                observer.onMessage(msg);
             MessageHandler handler = mMessageHandlers.get(msg.what);
             if (null != handler) {
                 try {
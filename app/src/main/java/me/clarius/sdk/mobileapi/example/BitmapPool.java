@@ -0,0 +1,175 @@
+package me.clarius.sdk.mobileapi.example;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Recycle the bitmaps of decoded frames to avoid one allocation per frame.
+ * <p>
+ * Bitmaps are reference counted: the pipeline holds one reference while delivering a frame,
+ * consumers keeping a bitmap after the listener callback must call retain() and later release().
+ * A bitmap returns to the pool when its last reference is released, it is then reused to decode a future frame
+ * with BitmapFactory.Options.inBitmap.
+ * <p>
+ * The pool only keeps bitmaps with the two most recently used sizes: when the frame size changes, bitmaps of the
+ * previous size are kept while frames in flight still use it, and bitmaps of the new size can be preallocated.
+ */
+
+public class BitmapPool {
+
+    private static final int MAX_SIZES = 2;
+
+    private final int mMaxFree;
+    private final IdentityHashMap<Bitmap, Integer> mRefs = new IdentityHashMap<>();
+
+    /**
+     * Unused bitmaps by size, in access order to drop the least recently used size.
+     */
+    private final LinkedHashMap<Long, ArrayDeque<Bitmap>> mFree = new LinkedHashMap<Long, ArrayDeque<Bitmap>>(4, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, ArrayDeque<Bitmap>> eldest) {
+            return size() > MAX_SIZES;
+        }
+    };
+
+    /**
+     * Construct an empty pool.
+     *
+     * @param maxFree The maximum number of unused bitmaps kept in the pool.
+     */
+    public BitmapPool(int maxFree) {
+        mMaxFree = maxFree;
+    }
+
+    private static long key(int width, int height) {
+        return ((long) width << 32) | height;
+    }
+
+    private ArrayDeque<Bitmap> freeList(int width, int height) {
+        long key = key(width, height);
+        ArrayDeque<Bitmap> free = mFree.get(key);
+        if (null == free) {
+            free = new ArrayDeque<>();
+            mFree.put(key, free);
+        }
+        return free;
+    }
+
+    /**
+     * Obtain a mutable bitmap with the given size, reused from the pool if possible.
+     * <p>
+     * The returned bitmap has one reference owned by the caller.
+     */
+    public synchronized Bitmap acquire(int width, int height) {
+        Bitmap bitmap = freeList(width, height).pollFirst();
+        if (null == bitmap)
+            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        mRefs.put(bitmap, 1);
+        return bitmap;
+    }
+
+    /**
+     * Allocate unused bitmaps with the given size ahead of time, so the next acquire() calls do not allocate.
+     * <p>
+     * Allocation happens outside the pool lock, so threads acquiring other sizes are not stalled.
+     */
+    public void preallocate(int width, int height, int count) {
+        int missing;
+        synchronized (this) {
+            missing = Math.min(count, mMaxFree) - freeList(width, height).size();
+        }
+        if (missing <= 0)
+            return;
+        Bitmap[] bitmaps = new Bitmap[missing];
+        for (int i = 0; i < missing; ++i)
+            bitmaps[i] = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        synchronized (this) {
+            ArrayDeque<Bitmap> free = freeList(width, height);
+            for (Bitmap bitmap : bitmaps) {
+                if (free.size() < mMaxFree)
+                    free.addLast(bitmap);
+            }
+        }
+    }
+
+    /**
+     * Track a bitmap that was not obtained from acquire(), with one reference owned by the caller.
+     */
+    public synchronized void adopt(Bitmap bitmap) {
+        mRefs.put(bitmap, 1);
+    }
+
+    /**
+     * Add one reference to a bitmap obtained from this pool.
+     */
+    public synchronized void retain(Bitmap bitmap) {
+        Integer refs = mRefs.get(bitmap);
+        if (null == refs)
+            throw new IllegalStateException("bitmap not in use");
+        mRefs.put(bitmap, refs + 1);
+    }
+
+    /**
+     * Remove one reference to a bitmap, it returns to the pool when the last reference is removed.
+     */
+    public synchronized void release(Bitmap bitmap) {
+        Integer refs = mRefs.get(bitmap);
+        if (null == refs)
+            throw new IllegalStateException("bitmap not in use");
+        if (refs > 1) {
+            mRefs.put(bitmap, refs - 1);
+            return;
+        }
+        mRefs.remove(bitmap);
+        if (!bitmap.isMutable())
+            return;
+        // do not revive a size dropped from the pool, nor change the access order
+        ArrayDeque<Bitmap> free = null;
+        long key = key(bitmap.getWidth(), bitmap.getHeight());
+        for (Map.Entry<Long, ArrayDeque<Bitmap>> entry : mFree.entrySet()) {
+            if (entry.getKey() == key)
+                free = entry.getValue();
+        }
+        if (null != free && free.size() < mMaxFree)
+            free.addLast(bitmap);
+    }
+
+    /**
+     * Drop unused bitmaps down to the given number, only keeping the most recently used size.
+     */
+    public synchronized void trim(int maxFree) {
+        Long recentKey = null;
+        ArrayDeque<Bitmap> recent = null;
+        for (Map.Entry<Long, ArrayDeque<Bitmap>> entry : mFree.entrySet()) {
+            recentKey = entry.getKey();
+            recent = entry.getValue();
+        }
+        mFree.clear();
+        if (null == recent)
+            return;
+        while (recent.size() > maxFree)
+            recent.pollLast();
+        mFree.put(recentKey, recent);
+    }
+
+    /**
+     * The number of unused bitmaps of all sizes.
+     */
+    public synchronized int getFreeCount() {
+        int count = 0;
+        for (ArrayDeque<Bitmap> free : mFree.values())
+            count += free.size();
+        return count;
+    }
+
+    /**
+     * Drop all unused bitmaps.
+     */
+    public synchronized void clear() {
+        mFree.clear();
+    }
+}
@@ -0,0 +1,172 @@
+package me.clarius.sdk.mobileapi.example;
+
+import android.graphics.Bitmap;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import me.clarius.sdk.mobileapi.PosInfo;
+import me.clarius.sdk.mobileapi.ProcessedImageInfo;
+
+/**
+ * Keep the recent frames in memory to scroll back through them once frozen.
+ * <p>
+ * Frames are stored as received, compressed, in a ring preallocated once and bounded by a byte budget rather than
+ * a number of frames: compressed frames are typically ten times smaller than their bitmap.
+ * The oldest frames are evicted to make room for new ones, and frames are only decoded when scrubbed.
+ * <p>
+ * Appending is done on the dispatch thread, see ApiHelper.FrameObserver, and stops while frozen.
+ */
+
+public class CineBuffer implements ApiHelper.FrameObserver {
+
+    private final ByteBuffer mStorage;
+    private final int mCapacity;
+    private final int mMaxFrames;
+    private final int[] mOffsets;
+    private final int[] mLengths;
+    private final ProcessedImageInfo[] mInfos;
+    private final Object[] mPosInfos;
+    private int mHead = 0;
+    private int mCount = 0;
+    private int mWritePosition = 0;
+    private boolean mFrozen = false;
+    private byte[] mScratch = new byte[0];
+
+    /**
+     * Allocate the ring.
+     *
+     * @param budgetBytes The memory reserved for the compressed frames.
+     * @param maxFrames The maximum number of frames, bounds the memory used by the index.
+     * @param offHeap Whether to store the frames outside of the Java heap.
+     */
+    public CineBuffer(int budgetBytes, int maxFrames, boolean offHeap) {
+        mStorage = offHeap ? ByteBuffer.allocateDirect(budgetBytes) : ByteBuffer.allocate(budgetBytes);
+        mCapacity = budgetBytes;
+        mMaxFrames = maxFrames;
+        mOffsets = new int[maxFrames];
+        mLengths = new int[maxFrames];
+        mInfos = new ProcessedImageInfo[maxFrames];
+        mPosInfos = new Object[maxFrames];
+    }
+
+    private int slot(int index) {
+        return (mHead + index) % mMaxFrames;
+    }
+
+    private void evictOldest() {
+        mInfos[mHead] = null;
+        mPosInfos[mHead] = null;
+        mHead = (mHead + 1) % mMaxFrames;
+        --mCount;
+    }
+
+    private boolean oldestOverlaps(int offset, int length) {
+        int start = mOffsets[mHead];
+        return start < offset + length && offset < start + mLengths[mHead];
+    }
+
+    @Override
+    public synchronized void onFrame(Frame frame) {
+        // overlay layers are not images to review
+        if (mFrozen || frame.mInfo.overlay)
+            return;
+        int length = frame.mLength;
+        if (length > mCapacity)
+            return;
+        if (mWritePosition + length > mCapacity) {
+            // wrap around: the frames at the end of the storage are the oldest ones
+            while (mCount > 0 && mOffsets[mHead] >= mWritePosition)
+                evictOldest();
+            mWritePosition = 0;
+        }
+        while (mCount > 0 && (mCount == mMaxFrames || oldestOverlaps(mWritePosition, length)))
+            evictOldest();
+        int slot = slot(mCount);
+        mStorage.position(mWritePosition);
+        mStorage.put(frame.mData, 0, length);
+        mOffsets[slot] = mWritePosition;
+        mLengths[slot] = length;
+        mInfos[slot] = frame.mInfo;
+        mPosInfos[slot] = frame.mPosInfo;
+        mWritePosition += length;
+        ++mCount;
+    }
+
+    /**
+     * Stop recording while frozen, to review the frames preceding the freeze.
+     */
+    public synchronized void setFrozen(boolean frozen) {
+        mFrozen = frozen;
+    }
+
+    /**
+     * Number of frames available.
+     */
+    public synchronized int size() {
+        return mCount;
+    }
+
+    /**
+     * Number of bytes used by the stored frames.
+     */
+    public synchronized long getUsedBytes() {
+        long used = 0;
+        for (int i = 0; i < mCount; ++i)
+            used += mLengths[slot(i)];
+        return used;
+    }
+
+    /**
+     * Image info of a frame.
+     *
+     * @param index From 0 (oldest) to size() - 1 (newest).
+     */
+    public synchronized ProcessedImageInfo getInfo(int index) {
+        checkIndex(index);
+        return mInfos[slot(index)];
+    }
+
+    /**
+     * Positional info of a frame.
+     *
+     * @param index From 0 (oldest) to size() - 1 (newest).
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized ArrayList<PosInfo> getPosInfo(int index) {
+        checkIndex(index);
+        return (ArrayList<PosInfo>) mPosInfos[slot(index)];
+    }
+
+    /**
+     * Decode a frame, the returned bitmap has one reference owned by the caller, see BitmapPool.
+     *
+     * @param index From 0 (oldest) to size() - 1 (newest).
+     */
+    public synchronized Bitmap decode(int index, FrameDecoder decoder) {
+        checkIndex(index);
+        int slot = slot(index);
+        int length = mLengths[slot];
+        if (mScratch.length < length)
+            mScratch = new byte[length];
+        mStorage.position(mOffsets[slot]);
+        mStorage.get(mScratch, 0, length);
+        ProcessedImageInfo info = mInfos[slot];
+        return decoder.decode(mScratch, length, info.width, info.height);
+    }
+
+    /**
+     * Drop all frames, the storage remains allocated.
+     */
+    public synchronized void clear() {
+        while (mCount > 0)
+            evictOldest();
+        mHead = 0;
+        mWritePosition = 0;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= mCount)
+            throw new IndexOutOfBoundsException("cine index " + index + " out of " + mCount);
+    }
+}
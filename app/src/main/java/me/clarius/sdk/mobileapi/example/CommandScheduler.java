@@ -0,0 +1,189 @@
+package me.clarius.sdk.mobileapi.example;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.os.SystemClock;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Send commands to the service in order, coalescing the commands superseded before being sent.
+ * <p>
+ * Controls like sliders issue a command per UI event, faster than the service applies them. Commands registered with
+ * setCoalescing() are rate limited: while one is waiting for its turn, a new command of the same kind replaces it
+ * (the last value wins) and moves to the end of the queue, so the commands are still applied in the order of
+ * their last values. Commands that cannot be coalesced, like toggles and increments, are all sent.
+ * <p>
+ * Only used on the thread of the looper given to the constructor, typically the main thread.
+ */
+
+public class CommandScheduler {
+
+    /**
+     * Coalescing key of the patient info, see setCoalescing().
+     */
+    public static final String PATIENT_INFO = "me.clarius.sdk.mobileapi.example.PATIENT_INFO";
+
+    private interface Request {
+        CompletableFuture<Integer> send() throws RemoteException;
+    }
+
+    private static class Command {
+        final String key;
+        Request request;
+        final CompletableFuture<Integer> future = new CompletableFuture<>();
+
+        Command(String key, Request request) {
+            this.key = key;
+            this.request = request;
+        }
+    }
+
+    private final ApiHelper mApi;
+    private final Handler mHandler;
+    private final Runnable mDrainRunnable = this::drain;
+    private final ArrayDeque<Command> mQueue = new ArrayDeque<>();
+    private final HashMap<String, Long> mIntervalsMs = new HashMap<>();
+    private final HashMap<String, Long> mLastSentMs = new HashMap<>();
+    private boolean mDrainScheduled = false;
+    private long mSubmitted = 0;
+    private long mIssued = 0;
+    private long mCoalesced = 0;
+
+    public CommandScheduler(ApiHelper api, Looper looper) {
+        mApi = api;
+        mHandler = new Handler(looper);
+    }
+
+    /**
+     * Coalesce and rate limit the commands with this key.
+     *
+     * @param key The user function name, or PATIENT_INFO.
+     * @param minIntervalMs The minimum delay between two commands with this key.
+     */
+    public CommandScheduler setCoalescing(String key, long minIntervalMs) {
+        mIntervalsMs.put(key, minIntervalMs);
+        return this;
+    }
+
+    /**
+     * Run a user function, see ApiHelper.userFn().
+     *
+     * @return The return status of the command actually sent, which may be a later command coalesced with this one.
+     */
+    public CompletableFuture<Integer> userFn(String fn, double param) {
+        return submit(fn, () -> mApi.userFn(fn, param));
+    }
+
+    /**
+     * Send the patient info, see ApiHelper.sendPatientInfo().
+     *
+     * @return The return status of the command actually sent, which may be a later command coalesced with this one.
+     */
+    public CompletableFuture<Integer> sendPatientInfo(String patientId, String patientName) {
+        return submit(PATIENT_INFO, () -> mApi.sendPatientInfo(patientId, patientName));
+    }
+
+    private CompletableFuture<Integer> submit(String key, Request request) {
+        ++mSubmitted;
+        if (mIntervalsMs.containsKey(key)) {
+            Iterator<Command> it = mQueue.iterator();
+            while (it.hasNext()) {
+                Command pending = it.next();
+                if (pending.key.equals(key)) {
+                    it.remove();
+                    pending.request = request;
+                    mQueue.addLast(pending);
+                    ++mCoalesced;
+                    drain();
+                    return pending.future;
+                }
+            }
+        }
+        Command command = new Command(key, request);
+        mQueue.addLast(command);
+        drain();
+        return command.future;
+    }
+
+    /**
+     * Send the commands at the head of the queue whose rate limit allows it, then wait for the next one.
+     */
+    private void drain() {
+        if (mDrainScheduled) {
+            mHandler.removeCallbacks(mDrainRunnable);
+            mDrainScheduled = false;
+        }
+        while (!mQueue.isEmpty()) {
+            Command command = mQueue.peekFirst();
+            long now = SystemClock.uptimeMillis();
+            Long interval = mIntervalsMs.get(command.key);
+            Long lastSent = mLastSentMs.get(command.key);
+            if (null != interval && null != lastSent && now < lastSent + interval) {
+                // keep the order: later commands wait behind this one
+                mHandler.postAtTime(mDrainRunnable, lastSent + interval);
+                mDrainScheduled = true;
+                return;
+            }
+            mQueue.pollFirst();
+            mLastSentMs.put(command.key, now);
+            ++mIssued;
+            send(command);
+        }
+    }
+
+    private static void send(Command command) {
+        try {
+            command.request.send().whenComplete((status, error) -> {
+                if (null != error)
+                    command.future.completeExceptionally(error);
+                else
+                    command.future.complete(status);
+            });
+        } catch (RemoteException e) {
+            command.future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Drop the commands not sent yet, failing their futures, for example when disconnecting.
+     */
+    public void clear() {
+        mHandler.removeCallbacks(mDrainRunnable);
+        mDrainScheduled = false;
+        for (Command command : mQueue)
+            command.future.completeExceptionally(new IllegalStateException("cleared"));
+        mQueue.clear();
+    }
+
+    /**
+     * Commands sent to the service.
+     */
+    public long getIssued() {
+        return mIssued;
+    }
+
+    /**
+     * Commands replaced by a later command before being sent.
+     */
+    public long getCoalesced() {
+        return mCoalesced;
+    }
+
+    public void resetCounters() {
+        mSubmitted = 0;
+        mIssued = 0;
+        mCoalesced = 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "Commands submitted: %d, issued: %d, coalesced: %d, pending: %d",
+            mSubmitted, mIssued, mCoalesced, mQueue.size());
+    }
+}
@@ -0,0 +1,33 @@
+package me.clarius.sdk.mobileapi.example;
+
+/**
+ * Stretch the contrast around mid-gray through a lookup table.
+ */
+
+public class ContrastStage implements ProcessingStage {
+
+    private final byte[] mTable = new byte[256];
+
+    /**
+     * @param contrast The slope applied around mid-gray, 1 leaves the image unchanged.
+     */
+    public ContrastStage(double contrast) {
+        for (int i = 0; i < mTable.length; ++i) {
+            long value = Math.round((i - 128) * contrast + 128);
+            mTable[i] = (byte) Math.max(0, Math.min(255, value));
+        }
+    }
+
+    @Override
+    public void processRows(LumaFrame src, LumaFrame dst, int top, int bottom) {
+        byte[] in = src.getData();
+        byte[] out = dst.getData();
+        int width = src.getWidth();
+        for (int y = top; y < bottom; ++y) {
+            int srcRow = y * src.getStride();
+            int dstRow = y * dst.getStride();
+            for (int x = 0; x < width; ++x)
+                out[dstRow + x] = mTable[in[srcRow + x] & 0xff];
+        }
+    }
+}
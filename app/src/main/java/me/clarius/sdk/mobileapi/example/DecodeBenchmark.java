@@ -0,0 +1,125 @@
+package me.clarius.sdk.mobileapi.example;
+
+import android.graphics.Bitmap;
+import android.os.Bundle;
+import android.os.Parcel;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Random;
+
+import me.clarius.sdk.mobileapi.MobileApi;
+
+/**
+ * Measure the transfer and decode cost of each frame format for several frame sizes, without a scanner.
+ * <p>
+ * Synthetic speckle images are encoded locally, like the Clarius App would, then decoded with FrameDecoder like live frames.
+ * The transfer is measured by writing the payload in a Parcel and reading it back, the copies Binder makes on both ends
+ * of a transaction (the kernel copy between processes is not included).
+ * Each line of the report shows the payload size, the average transfer, decode and total times, which tells where each
+ * format wins: raw frames skip decoding but are 4 bytes per pixel to transfer, compressed frames are smaller but cost
+ * a decode. Payloads over the Binder transaction buffer cannot be sent in a message at all and are flagged.
+ */
+
+public class DecodeBenchmark {
+
+    private static final int[] SIZES = {128, 256, 400, 640, 1024};
+    private static final int WARMUP = 5;
+    private static final int ITERATIONS = 30;
+    private static final int JPEG_QUALITY = 80;
+
+    /**
+     * The Binder transaction buffer shared by the transactions in flight of a process.
+     */
+    private static final int BINDER_BUFFER_BYTES = 1024 * 1024;
+
+    private final Random mRandom = new Random(0);
+
+    /**
+     * Run the benchmark, this takes a few seconds and must not be called on the main thread.
+     *
+     * @return A human-readable report.
+     */
+    public String run() {
+        StringBuilder report = new StringBuilder();
+        for (int size : SIZES) {
+            Bitmap source = makeImage(size, size);
+            report.append(size).append(" x ").append(size).append('\n');
+            report.append(measure(FrameFormat.JPEG, encode(source, Bitmap.CompressFormat.JPEG), size, size));
+            report.append(measure(FrameFormat.PNG, encode(source, Bitmap.CompressFormat.PNG), size, size));
+            report.append(measure(FrameFormat.RAW, raw(source), size, size));
+            source.recycle();
+        }
+        return report.toString();
+    }
+
+    private String measure(FrameFormat format, byte[] data, int width, int height) {
+        BitmapPool pool = new BitmapPool(2);
+        FrameDecoder decoder = new FrameDecoder(pool);
+        for (int i = 0; i < WARMUP; ++i)
+            pool.release(decoder.decode(data, data.length, width, height));
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; ++i)
+            pool.release(decoder.decode(data, data.length, width, height));
+        double decodeMs = (System.nanoTime() - start) / 1e6 / ITERATIONS;
+        double transferMs = measureTransfer(data);
+        return String.format(Locale.US, "  %-4s %8d bytes, transfer %6.2f ms, decode %6.2f ms, total %6.2f ms%s\n",
+            format, data.length, transferMs, decodeMs, transferMs + decodeMs,
+            data.length > BINDER_BUFFER_BYTES ? " (too large for Binder)" : "");
+    }
+
+    /**
+     * Average time to marshall and unmarshall the payload in a message bundle, like a Binder transaction.
+     */
+    private static double measureTransfer(byte[] data) {
+        Bundle bundle = new Bundle();
+        bundle.putByteArray(MobileApi.KEY_IMAGE_DATA, data);
+        long elapsed = 0;
+        for (int i = 0; i < WARMUP + ITERATIONS; ++i) {
+            long start = System.nanoTime();
+            Parcel parcel = Parcel.obtain();
+            try {
+                parcel.writeBundle(bundle);
+                parcel.setDataPosition(0);
+                Bundle received = parcel.readBundle(DecodeBenchmark.class.getClassLoader());
+                if (null == received || null == received.getByteArray(MobileApi.KEY_IMAGE_DATA))
+                    throw new AssertionError("payload lost");
+            } finally {
+                parcel.recycle();
+            }
+            if (i >= WARMUP)
+                elapsed += System.nanoTime() - start;
+        }
+        return elapsed / 1e6 / ITERATIONS;
+    }
+
+    /**
+     * Grayscale image with a depth gradient and speckle, roughly as hard to compress as a B-image.
+     */
+    private Bitmap makeImage(int width, int height) {
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; ++y) {
+            int base = 255 - 200 * y / height;
+            for (int x = 0; x < width; ++x) {
+                int v = Math.max(0, Math.min(255, base - mRandom.nextInt(128)));
+                pixels[y * width + x] = 0xff000000 | (v << 16) | (v << 8) | v;
+            }
+        }
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+        return bitmap;
+    }
+
+    private static byte[] encode(Bitmap bitmap, Bitmap.CompressFormat format) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(format, JPEG_QUALITY, out);
+        return out.toByteArray();
+    }
+
+    private static byte[] raw(Bitmap bitmap) {
+        ByteBuffer buffer = ByteBuffer.allocate(bitmap.getByteCount());
+        bitmap.copyPixelsToBuffer(buffer);
+        return buffer.array();
+    }
+}
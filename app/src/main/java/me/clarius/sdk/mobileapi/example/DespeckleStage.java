@@ -0,0 +1,54 @@
+package me.clarius.sdk.mobileapi.example;
+
+/**
+ * Reduce speckle noise with a 3x3 median filter, the image borders are copied unchanged.
+ */
+
+public class DespeckleStage implements ProcessingStage {
+
+    @Override
+    public void processRows(LumaFrame src, LumaFrame dst, int top, int bottom) {
+        byte[] in = src.getData();
+        byte[] out = dst.getData();
+        int width = src.getWidth();
+        int height = src.getHeight();
+        int stride = src.getStride();
+        int[] window = new int[9];
+        for (int y = top; y < bottom; ++y) {
+            int row = y * stride;
+            if (0 == y || height - 1 == y || width < 3) {
+                System.arraycopy(in, row, out, dst.getStride() * y, width);
+                continue;
+            }
+            int dstRow = y * dst.getStride();
+            out[dstRow] = in[row];
+            out[dstRow + width - 1] = in[row + width - 1];
+            for (int x = 1; x < width - 1; ++x) {
+                int n = 0;
+                for (int dy = -1; dy <= 1; ++dy) {
+                    int offset = row + dy * stride + x;
+                    window[n++] = in[offset - 1] & 0xff;
+                    window[n++] = in[offset] & 0xff;
+                    window[n++] = in[offset + 1] & 0xff;
+                }
+                out[dstRow + x] = (byte) median9(window);
+            }
+        }
+    }
+
+    /**
+     * Median of 9 values by insertion sort, fast enough for such a small window.
+     */
+    private static int median9(int[] values) {
+        for (int i = 1; i < 9; ++i) {
+            int value = values[i];
+            int j = i - 1;
+            while (j >= 0 && values[j] > value) {
+                values[j + 1] = values[j];
+                --j;
+            }
+            values[j + 1] = value;
+        }
+        return values[4];
+    }
+}
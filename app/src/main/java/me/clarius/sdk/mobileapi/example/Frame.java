@@ -0,0 +1,80 @@
+package me.clarius.sdk.mobileapi.example;
+
+import android.graphics.Rect;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import me.clarius.sdk.mobileapi.PosInfo;
+import me.clarius.sdk.mobileapi.ProcessedImageInfo;
+
+/**
+ * One processed image received from the service, before decoding.
+ * <p>
+ * The timestamps of each stage are filled as the frame goes through the pipeline, see FrameMetrics.
+ * They all use the System.nanoTime() time base, which is also the base of Message.getWhen() (in milliseconds).
+ * <p>
+ * Frames read from shared memory hold a buffer recycled by a FrameBufferPool, possibly larger than the image data,
+ * and are reference counted: whoever keeps a frame after handing it over must call retain() and later release().
+ * Other frames own their data and ignore the reference count.
+ */
+
+public class Frame {
+    public final long mSequence;
+    public final ProcessedImageInfo mInfo;
+    public final ArrayList<PosInfo> mPosInfo;
+    public final byte[] mData;
+    /**
+     * The number of valid bytes in mData.
+     */
+    public final int mLength;
+
+    /**
+     * Area to decode instead of the whole frame, see ApiHelper.DecodeMode.SCAN_AREA, or null.
+     */
+    Rect mRegion = null;
+
+    long mWhenNanos = 0;
+    long mDispatchNanos = 0;
+    long mSubmitNanos = 0;
+    long mDecodedNanos = 0;
+    long mDeliveredNanos = 0;
+
+    private final FrameBufferPool mPool;
+    private final AtomicInteger mRefs = new AtomicInteger(1);
+
+    Frame(long sequence, ProcessedImageInfo info, ArrayList<PosInfo> posInfo, byte[] data) {
+        this(sequence, info, posInfo, data, data.length, null);
+    }
+
+    /**
+     * Construct a frame with one reference owned by the caller, its data returns to the pool when released.
+     */
+    Frame(long sequence, ProcessedImageInfo info, ArrayList<PosInfo> posInfo, byte[] data, int length, FrameBufferPool pool) {
+        this.mSequence = sequence;
+        this.mInfo = info;
+        this.mPosInfo = posInfo;
+        this.mData = data;
+        this.mLength = length;
+        this.mPool = pool;
+    }
+
+    /**
+     * Add one reference to the frame.
+     */
+    public void retain() {
+        if (mRefs.getAndIncrement() <= 0)
+            throw new IllegalStateException("frame not in use");
+    }
+
+    /**
+     * Remove one reference to the frame, its data returns to the pool when the last reference is removed.
+     */
+    public void release() {
+        int refs = mRefs.decrementAndGet();
+        if (refs < 0)
+            throw new IllegalStateException("frame not in use");
+        if (0 == refs && null != mPool)
+            mPool.recycle(mData);
+    }
+}
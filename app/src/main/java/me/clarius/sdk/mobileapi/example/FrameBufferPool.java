@@ -0,0 +1,52 @@
+package me.clarius.sdk.mobileapi.example;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Recycle the buffers receiving the image data of shared frames, to avoid one allocation per frame.
+ * <p>
+ * Buffers are reused for any frame fitting in them, so the valid length is carried by the frame, see Frame.mLength.
+ * Buffers never returned, for example frames lost on an interruption, are simply collected.
+ */
+
+public class FrameBufferPool {
+
+    private final int mMaxFree;
+    private final ArrayDeque<byte[]> mFree = new ArrayDeque<>();
+
+    /**
+     * Construct an empty pool.
+     *
+     * @param maxFree The maximum number of unused buffers kept in the pool.
+     */
+    public FrameBufferPool(int maxFree) {
+        mMaxFree = maxFree;
+    }
+
+    /**
+     * Obtain a buffer of at least the given length, reused from the pool if possible.
+     */
+    public byte[] acquire(int length) {
+        synchronized (this) {
+            Iterator<byte[]> it = mFree.iterator();
+            while (it.hasNext()) {
+                byte[] free = it.next();
+                if (free.length >= length) {
+                    it.remove();
+                    return free;
+                }
+            }
+            // drop a buffer too small to be reused, the new one replaces it
+            if (mFree.size() >= mMaxFree)
+                mFree.pollFirst();
+        }
+        return new byte[length];
+    }
+
+    synchronized void recycle(byte[] buffer) {
+        if (mFree.size() < mMaxFree)
+            mFree.addLast(buffer);
+    }
+
+}
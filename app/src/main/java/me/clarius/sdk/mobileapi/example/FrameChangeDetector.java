@@ -0,0 +1,125 @@
+package me.clarius.sdk.mobileapi.example;
+
+import java.util.zip.CRC32;
+
+/**
+ * Detect frames identical or nearly identical to the previous one, before decoding them.
+ * <p>
+ * Exact detection compares the length and a CRC of the image data, cheap compared to decoding.
+ * Sparse detection also compares a grid of samples of raw frames, and considers them unchanged when the mean luma
+ * difference is below a threshold, to ignore noise when the probe is idle. Compressed bytes cannot be compared this
+ * way since a small change in the image changes the whole encoded stream, so they only get exact detection.
+ * <p>
+ * Only used on the dispatch thread.
+ */
+
+public class FrameChangeDetector {
+
+    public enum Mode {
+        /**
+         * Decode all frames.
+         */
+        OFF,
+        /**
+         * Skip frames with the same image data as the previous one.
+         */
+        EXACT,
+        /**
+         * Also skip raw frames whose sampled luma is nearly the same as the previous one.
+         */
+        SPARSE,
+    }
+
+    private static final int SAMPLES = 1024;
+    private static final int MAX_MEAN_LUMA_DIFFERENCE = 2;
+
+    private final CRC32 mCrc = new CRC32();
+    private final int[] mSamples = new int[SAMPLES];
+    private final int[] mPreviousSamples = new int[SAMPLES];
+    private Mode mMode = Mode.OFF;
+    private boolean mHasPrevious = false;
+    private int mPreviousLength = 0;
+    private long mPreviousCrc = 0;
+    private int mPreviousWidth = 0;
+    private int mPreviousHeight = 0;
+    private int mPreviousSampleCount = 0;
+
+    /**
+     * Select how to compare frames, the previous frame is forgotten when the mode changes.
+     */
+    public void setMode(Mode mode) {
+        if (mode == mMode)
+            return;
+        mMode = mode;
+        reset();
+    }
+
+    /**
+     * Forget the previous frame, for example when the decoded output would differ even for the same image data.
+     */
+    public void reset() {
+        mHasPrevious = false;
+    }
+
+    /**
+     * Compare the frame with the last changed frame, which it replaces if changed.
+     * <p>
+     * Comparing with the last changed frame instead of the previous frame avoids skipping slow drifts forever.
+     *
+     * @param length The number of valid bytes in data.
+     * @return True if the frame does not need to be decoded.
+     */
+    public boolean isUnchanged(byte[] data, int length, int width, int height) {
+        if (Mode.OFF == mMode)
+            return false;
+        mCrc.reset();
+        mCrc.update(data, 0, length);
+        long crc = mCrc.getValue();
+        boolean sameSize = mHasPrevious && width == mPreviousWidth && height == mPreviousHeight;
+        boolean unchanged = sameSize && length == mPreviousLength && crc == mPreviousCrc;
+        int sampleCount = 0;
+        if (Mode.SPARSE == mMode && FrameFormat.RAW == FrameFormat.detect(data, length, width, height)) {
+            sampleCount = sample(data, width, height);
+            if (!unchanged && sameSize && sampleCount == mPreviousSampleCount)
+                unchanged = meanDifference(sampleCount) <= MAX_MEAN_LUMA_DIFFERENCE;
+        }
+        if (!unchanged) {
+            mPreviousLength = length;
+            mPreviousCrc = crc;
+            mPreviousWidth = width;
+            mPreviousHeight = height;
+            mPreviousSampleCount = sampleCount;
+            System.arraycopy(mSamples, 0, mPreviousSamples, 0, sampleCount);
+            mHasPrevious = true;
+        }
+        return unchanged;
+    }
+
+    /**
+     * Sample the luma of raw pixels on a regular grid.
+     *
+     * @return The number of samples.
+     */
+    private int sample(byte[] data, int width, int height) {
+        int pixels = width * height;
+        int stride = Math.max(1, pixels / SAMPLES);
+        int count = 0;
+        for (int i = 0; i < pixels && count < SAMPLES; i += stride) {
+            int offset = i * FrameFormat.RAW_BYTES_PER_PIXEL;
+            int r = data[offset] & 0xff;
+            int g = data[offset + 1] & 0xff;
+            int b = data[offset + 2] & 0xff;
+            mSamples[count++] = (r + 2 * g + b) >> 2;
+        }
+        return count;
+    }
+
+    private int meanDifference(int count) {
+        if (0 == count)
+            return 0;
+        long sum = 0;
+        for (int i = 0; i < count; ++i)
+            sum += Math.abs(mSamples[i] - mPreviousSamples[i]);
+        return (int) (sum / count);
+    }
+}
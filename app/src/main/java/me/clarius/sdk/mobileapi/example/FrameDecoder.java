@@ -0,0 +1,245 @@
+package me.clarius.sdk.mobileapi.example;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Convert the image data of a frame to a bitmap recycled from a BitmapPool.
+ * <p>
+ * Compressed frames go through BitmapFactory, raw frames are copied straight into the bitmap.
+ * <p>
+ * With a target size, compressed frames at least twice as large are downsampled while decoding with
+ * BitmapFactory.Options.inSampleSize, for example until the service applies an image size matching the view.
+ * <p>
+ * Frames can also be decoded partially, see decodeRegion(), and converted to luma, see rawToLuma() and toLuma().
+ */
+
+public class FrameDecoder {
+
+    private static final String TAG = "MobileApi/Decoder";
+    private static final int WARM_UP_SIZE = 16;
+    private static final int WARM_UP_QUALITY = 80;
+
+    private final BitmapPool mPool;
+    private volatile int mTargetWidth = 0;
+    private volatile int mTargetHeight = 0;
+    private final Rect mRegion = new Rect();
+    private byte[] mRegionScratch = new byte[0];
+    private final LumaPool mLumaPool;
+    private int[] mRowScratch = new int[0];
+
+    public FrameDecoder(BitmapPool pool) {
+        this(pool, new LumaPool(1));
+    }
+
+    public FrameDecoder(BitmapPool pool, LumaPool lumaPool) {
+        mPool = pool;
+        mLumaPool = lumaPool;
+    }
+
+    /**
+     * Decode a tiny image of each compressed format once, so the codecs are loaded before the first frame.
+     * <p>
+     * Uses its own pool: the tiny bitmaps must not take one of the sizes kept by the frame pool.
+     */
+    public static void warmUp() {
+        Bitmap source = Bitmap.createBitmap(WARM_UP_SIZE, WARM_UP_SIZE, Bitmap.Config.ARGB_8888);
+        FrameDecoder decoder = new FrameDecoder(new BitmapPool(1));
+        for (Bitmap.CompressFormat format : new Bitmap.CompressFormat[]{Bitmap.CompressFormat.JPEG, Bitmap.CompressFormat.PNG}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            source.compress(format, WARM_UP_QUALITY, out);
+            byte[] data = out.toByteArray();
+            decoder.mPool.release(decoder.decode(data, data.length, WARM_UP_SIZE, WARM_UP_SIZE));
+        }
+    }
+
+    /**
+     * Downsample compressed frames larger than this size, can be called from any thread.
+     *
+     * @param width The displayed width in pixels, 0 to never downsample.
+     * @param height The displayed height in pixels, 0 to never downsample.
+     */
+    public void setTargetSize(int width, int height) {
+        mTargetWidth = width;
+        mTargetHeight = height;
+    }
+
+    /**
+     * The largest power of two keeping the decoded image at least as large as the target size.
+     */
+    private int sampleSize(int width, int height) {
+        int targetWidth = mTargetWidth;
+        int targetHeight = mTargetHeight;
+        int sample = 1;
+        if (targetWidth <= 0 || targetHeight <= 0)
+            return sample;
+        while (width / (sample * 2) >= targetWidth && height / (sample * 2) >= targetHeight)
+            sample *= 2;
+        return sample;
+    }
+
+    /**
+     * Size of a dimension decoded with inSampleSize: JPEG rounds up (scaled in the decoder), others round down.
+     */
+    private static int sampledDimension(FrameFormat format, int dimension, int sample) {
+        if (FrameFormat.JPEG == format)
+            return (dimension + sample - 1) / sample;
+        return Math.max(1, dimension / sample);
+    }
+
+    /**
+     * Decode the image data, the returned bitmap has one reference owned by the caller.
+     *
+     * @param data The image data, may be larger than needed.
+     * @param length The number of valid bytes in data.
+     * @param width The image width announced in the frame info.
+     * @param height The image height announced in the frame info.
+     */
+    public Bitmap decode(byte[] data, int length, int width, int height) {
+        FrameFormat format = FrameFormat.detect(data, length, width, height);
+        if (FrameFormat.RAW == format) {
+            Bitmap reused = mPool.acquire(width, height);
+            reused.copyPixelsFromBuffer(ByteBuffer.wrap(data, 0, length));
+            return reused;
+        }
+        int sample = sampleSize(width, height);
+        Bitmap reused = mPool.acquire(sampledDimension(format, width, sample), sampledDimension(format, height, sample));
+        return decodeCompressed(data, length, reused, sample);
+    }
+
+    /**
+     * Decode only a region of the image data at full resolution, the returned bitmap has one reference owned by the caller.
+     * <p>
+     * Compressed frames go through BitmapRegionDecoder: JPEG decoding skips the blocks outside the region, PNG decoding
+     * still goes through the rows above it. Raw frames only copy the rows of the region.
+     *
+     * @param region The region to decode, clipped to the image.
+     */
+    public Bitmap decodeRegion(byte[] data, int length, int width, int height, Rect region) {
+        mRegion.set(region);
+        if (!mRegion.intersect(0, 0, width, height))
+            return decode(data, length, width, height);
+        FrameFormat format = FrameFormat.detect(data, length, width, height);
+        Bitmap reused = mPool.acquire(mRegion.width(), mRegion.height());
+        if (FrameFormat.RAW == format) {
+            copyRawRegion(data, width, reused);
+            return reused;
+        }
+        BitmapRegionDecoder decoder;
+        try {
+            decoder = BitmapRegionDecoder.newInstance(data, 0, length, false);
+        } catch (IOException e) {
+            mPool.release(reused);
+            throw new AssertionError("bad image data", e);
+        }
+        try {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inMutable = true;
+            options.inBitmap = reused;
+            Bitmap bitmap = decoder.decodeRegion(mRegion, options);
+            if (bitmap != reused) {
+                mPool.release(reused);
+                if (null == bitmap)
+                    throw new AssertionError("bad image data");
+                mPool.adopt(bitmap);
+            }
+            return bitmap;
+        } finally {
+            decoder.recycle();
+        }
+    }
+
+    /**
+     * Copy the rows of the region from a raw frame into the bitmap, through a scratch buffer reused between frames.
+     */
+    private void copyRawRegion(byte[] data, int width, Bitmap bitmap) {
+        int rowBytes = mRegion.width() * FrameFormat.RAW_BYTES_PER_PIXEL;
+        int size = rowBytes * mRegion.height();
+        if (mRegionScratch.length < size)
+            mRegionScratch = new byte[size];
+        for (int y = 0; y < mRegion.height(); ++y) {
+            int src = ((mRegion.top + y) * width + mRegion.left) * FrameFormat.RAW_BYTES_PER_PIXEL;
+            System.arraycopy(data, src, mRegionScratch, y * rowBytes, rowBytes);
+        }
+        bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(mRegionScratch, 0, size));
+    }
+
+    /**
+     * Convert a raw frame straight to luma without going through a bitmap, the returned frame has one reference owned
+     * by the caller.
+     *
+     * @param region The region to convert, clipped to the image, or null for the whole image.
+     */
+    public LumaFrame rawToLuma(byte[] data, int width, int height, Rect region) {
+        mRegion.set(0, 0, width, height);
+        if (null != region && !mRegion.intersect(region))
+            mRegion.set(0, 0, width, height);
+        LumaFrame luma = mLumaPool.acquire(mRegion.width(), mRegion.height());
+        byte[] dst = luma.getData();
+        int stride = luma.getStride();
+        for (int y = 0; y < mRegion.height(); ++y) {
+            int src = ((mRegion.top + y) * width + mRegion.left) * FrameFormat.RAW_BYTES_PER_PIXEL;
+            int row = y * stride;
+            for (int x = 0; x < mRegion.width(); ++x, src += FrameFormat.RAW_BYTES_PER_PIXEL) {
+                // R, G, B in memory order, the image is grayscale so a cheap weighting is enough
+                dst[row + x] = (byte) (((data[src] & 0xff) + 2 * (data[src + 1] & 0xff) + (data[src + 2] & 0xff)) >> 2);
+            }
+        }
+        return luma;
+    }
+
+    /**
+     * Convert a decoded bitmap to luma, one row at a time through a scratch buffer reused between frames.
+     * The returned frame has one reference owned by the caller.
+     */
+    public LumaFrame toLuma(Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        LumaFrame luma = mLumaPool.acquire(width, height);
+        if (mRowScratch.length < width)
+            mRowScratch = new int[width];
+        byte[] dst = luma.getData();
+        int stride = luma.getStride();
+        for (int y = 0; y < height; ++y) {
+            bitmap.getPixels(mRowScratch, 0, width, 0, y, width, 1);
+            int row = y * stride;
+            for (int x = 0; x < width; ++x) {
+                int pixel = mRowScratch[x];
+                dst[row + x] = (byte) ((((pixel >> 16) & 0xff) + 2 * ((pixel >> 8) & 0xff) + (pixel & 0xff)) >> 2);
+            }
+        }
+        return luma;
+    }
+
+    /**
+     * Decode with the platform decoder reusing the given bitmap, fall back to a new bitmap if it cannot be reused.
+     */
+    private Bitmap decodeCompressed(byte[] data, int length, Bitmap reused, int sample) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inMutable = true;
+        options.inSampleSize = sample;
+        options.inBitmap = reused;
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeByteArray(data, 0, length, options);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Cannot reuse bitmap: " + e.getMessage());
+            options.inBitmap = null;
+            bitmap = BitmapFactory.decodeByteArray(data, 0, length, options);
+        }
+        if (bitmap != reused) {
+            mPool.release(reused);
+            if (bitmap == null)
+                throw new AssertionError("bad image data");
+            mPool.adopt(bitmap);
+        }
+        return bitmap;
+    }
+}
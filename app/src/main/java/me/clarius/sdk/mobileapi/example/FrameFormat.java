@@ -0,0 +1,50 @@
+package me.clarius.sdk.mobileapi.example;
+
+/**
+ * Encoding of the image data of a processed image.
+ * <p>
+ * The format is detected from the payload itself, so frames are decoded correctly whatever was requested in the image configuration.
+ */
+
+public enum FrameFormat {
+    JPEG,
+    PNG,
+    /**
+     * Uncompressed pixels, 4 bytes per pixel in the Bitmap.Config.ARGB_8888 memory layout, copied without decoding.
+     */
+    RAW;
+
+    /**
+     * Number of bytes per pixel in raw frames.
+     */
+    public static final int RAW_BYTES_PER_PIXEL = 4;
+
+    private static boolean startsWith(byte[] data, int length, int... signature) {
+        if (length < signature.length)
+            return false;
+        for (int i = 0; i < signature.length; ++i) {
+            if ((data[i] & 0xff) != signature[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Detect the format of the image data.
+     *
+     * @return The detected format, or null if unknown, in which case the platform decoder may still support it.
+     */
+    public static FrameFormat detect(byte[] data, int length, int width, int height) {
+        if (startsWith(data, length, 0xff, 0xd8, 0xff))
+            return JPEG;
+        if (startsWith(data, length, 0x89, 'P', 'N', 'G'))
+            return PNG;
+        if (length == width * height * RAW_BYTES_PER_PIXEL)
+            return RAW;
+        return null;
+    }
+
+    public boolean isCompressed() {
+        return this != RAW;
+    }
+}
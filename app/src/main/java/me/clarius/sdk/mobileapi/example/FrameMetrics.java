@@ -0,0 +1,188 @@
+package me.clarius.sdk.mobileapi.example;
+
+import java.util.Locale;
+
+import me.clarius.sdk.mobileapi.ProcessedImageInfo;
+
+/**
+ * Latency of each stage of the image path, frame rate and jitter.
+ * <p>
+ * Each frame carries the timestamps of its stages, see Frame, which are recorded in one histogram per stage:
+ * - QUEUE: from the message enqueued in our handler (Message.getWhen()) to the start of dispatch;
+ * - DISPATCH: unparceling on the dispatch thread;
+ * - DECODE: from the hand-off to the decode thread to the decoded bitmap, including the time waiting in the queue;
+ * - DELIVERY: from the decoded bitmap to the listener callback;
+ * - PRESENTATION: from the listener callback to the bitmap being shown;
+ * - END_TO_END: from the message enqueued to the bitmap being shown.
+ * <p>
+ * Recording does not allocate, the histograms have a fixed size.
+ */
+
+public class FrameMetrics {
+
+    public enum Stage {
+        QUEUE,
+        DISPATCH,
+        DECODE,
+        DELIVERY,
+        PRESENTATION,
+        END_TO_END,
+    }
+
+    private static final int RECENT_FRAMES = 8;
+
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[Stage.values().length];
+    private final IntervalMeter mServiceIntervals = new IntervalMeter();
+    private final IntervalMeter mPresentIntervals = new IntervalMeter();
+    private final Frame[] mRecentFrames = new Frame[RECENT_FRAMES];
+    private int mNextRecent = 0;
+
+    FrameMetrics() {
+        for (int i = 0; i < mHistograms.length; ++i)
+            mHistograms[i] = new LatencyHistogram();
+    }
+
+    private void record(Stage stage, long nanos) {
+        mHistograms[stage.ordinal()].record(nanos);
+    }
+
+    /**
+     * Called on the dispatch thread once the frame is handed to the decode thread.
+     */
+    void recordDispatched(Frame frame) {
+        record(Stage.QUEUE, frame.mDispatchNanos - frame.mWhenNanos);
+        record(Stage.DISPATCH, frame.mSubmitNanos - frame.mDispatchNanos);
+        mServiceIntervals.record(frame.mInfo.tm);
+    }
+
+    /**
+     * Called on the decode thread once the frame is decoded.
+     */
+    void recordDecoded(Frame frame) {
+        record(Stage.DECODE, frame.mDecodedNanos - frame.mSubmitNanos);
+    }
+
+    /**
+     * Called on the listener thread before the listener callback.
+     */
+    void recordDelivered(Frame frame) {
+        record(Stage.DELIVERY, frame.mDeliveredNanos - frame.mDecodedNanos);
+        synchronized (mRecentFrames) {
+            mRecentFrames[mNextRecent] = frame;
+            mNextRecent = (mNextRecent + 1) % RECENT_FRAMES;
+        }
+    }
+
+    /**
+     * Record the presentation of a frame recently delivered to the listener, identified by its image info.
+     * <p>
+     * Called by FrameRenderer right after drawing the bitmap, frames not found in the recently delivered frames are ignored.
+     */
+    public void recordPresented(ProcessedImageInfo info) {
+        long now = System.nanoTime();
+        Frame frame = null;
+        synchronized (mRecentFrames) {
+            for (int i = 0; i < RECENT_FRAMES && null == frame; ++i) {
+                Frame candidate = mRecentFrames[i];
+                if (null != candidate && candidate.mInfo == info) {
+                    frame = candidate;
+                    mRecentFrames[i] = null;
+                }
+            }
+        }
+        if (null == frame)
+            return;
+        record(Stage.PRESENTATION, now - frame.mDeliveredNanos);
+        record(Stage.END_TO_END, now - frame.mWhenNanos);
+        mPresentIntervals.record(now);
+    }
+
+    public LatencyHistogram getHistogram(Stage stage) {
+        return mHistograms[stage.ordinal()];
+    }
+
+    /**
+     * Frame rate of the presented frames, smoothed over the last frames.
+     */
+    public double getPresentedFps() {
+        return mPresentIntervals.getRate();
+    }
+
+    /**
+     * Frame rate according to the service timestamps, smoothed over the last frames.
+     */
+    public double getServiceFps() {
+        return mServiceIntervals.getRate();
+    }
+
+    /**
+     * Smoothed variation of the interval between presented frames, in milliseconds.
+     */
+    public double getPresentedJitterMs() {
+        return mPresentIntervals.getJitterMs();
+    }
+
+    /**
+     * Smoothed variation of the interval between service timestamps, in milliseconds.
+     */
+    public double getServiceJitterMs() {
+        return mServiceIntervals.getJitterMs();
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : mHistograms)
+            histogram.reset();
+        mServiceIntervals.reset();
+        mPresentIntervals.reset();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format(Locale.US, "Service: %.1f fps, jitter %.2f ms\nPresented: %.1f fps, jitter %.2f ms\n",
+            getServiceFps(), getServiceJitterMs(), getPresentedFps(), getPresentedJitterMs()));
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram h = getHistogram(stage);
+            builder.append(String.format(Locale.US, "%s: p50 %.2f, p99 %.2f, max %.2f ms\n",
+                stage, h.getPercentileMs(50), h.getPercentileMs(99), h.getMaxMs()));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Smoothed interval and jitter (mean deviation between consecutive intervals, as in RFC 3550) of a series of timestamps.
+     */
+    private static class IntervalMeter {
+        private static final double SMOOTHING = 1 / 16.0;
+        private long mLast = 0;
+        private double mInterval = 0;
+        private double mLastInterval = 0;
+        private double mJitter = 0;
+
+        synchronized void record(long nanos) {
+            if (0 != mLast && nanos > mLast) {
+                double interval = nanos - mLast;
+                mInterval = 0 == mInterval ? interval : mInterval + (interval - mInterval) * SMOOTHING;
+                if (0 != mLastInterval)
+                    mJitter += (Math.abs(interval - mLastInterval) - mJitter) * SMOOTHING;
+                mLastInterval = interval;
+            }
+            mLast = nanos;
+        }
+
+        synchronized double getRate() {
+            return 0 == mInterval ? 0 : 1e9 / mInterval;
+        }
+
+        synchronized double getJitterMs() {
+            return mJitter / 1e6;
+        }
+
+        synchronized void reset() {
+            mLast = 0;
+            mInterval = 0;
+            mLastInterval = 0;
+            mJitter = 0;
+        }
+    }
+}
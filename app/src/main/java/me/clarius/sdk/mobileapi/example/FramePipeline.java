@@ -0,0 +1,145 @@
+package me.clarius.sdk.mobileapi.example;
+
+import android.graphics.Bitmap;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Decode frames on a dedicated thread, see FrameQueue for the backpressure policies.
+ * <p>
+ * The dispatch thread submits frames as soon as they are unparceled, frames superseded before
+ * the decoder gets to them are dropped without being decoded.
+ * <p>
+ * Frames are decoded into bitmaps recycled from the BitmapPool, see FrameDecoder, the output owns one reference to the bitmap.
+ * Frames can also be converted to luma, see setOutputs(): raw frames then skip the bitmap when it is not needed.
+ */
+
+public class FramePipeline {
+
+    private static final String TAG = "MobileApi/Pipeline";
+
+    /**
+     * Receive the decoded frames on the decode thread.
+     */
+    public interface Output {
+        /**
+         * @param bitmap The decoded bitmap, or null if not requested.
+         * @param luma The luma frame, or null if not requested.
+         */
+        void onFrameDecoded(Frame frame, Bitmap bitmap, LumaFrame luma);
+    }
+
+    private final FrameStats mStats;
+    private final BitmapPool mPool;
+    private final FrameDecoder mDecoder;
+    private final FrameQueue mQueue;
+    private final Output mOutput;
+    private Thread mThread = null;
+    private volatile boolean mBitmapOutput = true;
+    private volatile boolean mLumaOutput = false;
+
+    FramePipeline(FrameStats stats, BitmapPool pool, LumaPool lumaPool, Output output) {
+        mStats = stats;
+        mPool = pool;
+        mDecoder = new FrameDecoder(pool, lumaPool);
+        mQueue = new FrameQueue(stats);
+        mOutput = output;
+    }
+
+    /**
+     * Select the backpressure policy, see FrameQueue.
+     */
+    public void setPolicy(FrameQueue.Policy policy, int capacity) {
+        mQueue.setPolicy(policy, capacity);
+    }
+
+    /**
+     * Downsample frames larger than the displayed size, see FrameDecoder.setTargetSize().
+     */
+    public void setTargetSize(int width, int height) {
+        mDecoder.setTargetSize(width, height);
+    }
+
+    /**
+     * Select what is produced from each frame, at least one of them, takes effect with the next frame.
+     */
+    public void setOutputs(boolean bitmap, boolean luma) {
+        if (!bitmap && !luma)
+            throw new IllegalArgumentException("no output");
+        mBitmapOutput = bitmap;
+        mLumaOutput = luma;
+    }
+
+    /**
+     * Start the decode thread. Does nothing if already started.
+     */
+    public synchronized void start() {
+        if (null != mThread)
+            return;
+        mQueue.open();
+        mThread = new Thread(this::run, "MobileApi/Decode");
+        mThread.start();
+    }
+
+    /**
+     * Stop the decode thread and drop pending frames. Does nothing if not started.
+     */
+    public synchronized void stop() {
+        if (null == mThread)
+            return;
+        mQueue.close();
+        mThread.interrupt();
+        mThread = null;
+    }
+
+    /**
+     * Hand a new frame to the decode thread, called from the dispatch thread.
+     */
+    public void submit(Frame frame) throws InterruptedException {
+        mStats.addReceivedFrame();
+        mQueue.put(frame);
+    }
+
+    private void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+        try {
+            Frame frame;
+            while (!Thread.currentThread().isInterrupted() && null != (frame = mQueue.take())) {
+                try {
+                    decode(frame);
+                } catch (Exception e) {
+                    Log.e(TAG, "Failed to decode frame " + frame.mSequence, e);
+                } finally {
+                    frame.release();
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.v(TAG, "Decode thread interrupted");
+        }
+    }
+
+    private void decode(Frame frame) {
+        long start = System.nanoTime();
+        boolean bitmapOutput = mBitmapOutput;
+        boolean lumaOutput = mLumaOutput;
+        int width = frame.mInfo.width;
+        int height = frame.mInfo.height;
+        boolean raw = FrameFormat.RAW == FrameFormat.detect(frame.mData, frame.mLength, width, height);
+        Bitmap bitmap = null;
+        LumaFrame luma = null;
+        if (bitmapOutput || !raw) {
+            bitmap = null != frame.mRegion
+                ? mDecoder.decodeRegion(frame.mData, frame.mLength, width, height, frame.mRegion)
+                : mDecoder.decode(frame.mData, frame.mLength, width, height);
+        }
+        if (lumaOutput)
+            luma = null != bitmap ? mDecoder.toLuma(bitmap) : mDecoder.rawToLuma(frame.mData, width, height, frame.mRegion);
+        if (!bitmapOutput && null != bitmap) {
+            mPool.release(bitmap);
+            bitmap = null;
+        }
+        frame.mDecodedNanos = System.nanoTime();
+        mStats.addDecodeTime(frame.mDecodedNanos - start);
+        mOutput.onFrameDecoded(frame, bitmap, luma);
+    }
+}
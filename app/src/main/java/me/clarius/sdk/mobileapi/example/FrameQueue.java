@@ -0,0 +1,110 @@
+package me.clarius.sdk.mobileapi.example;
+
+import java.util.ArrayDeque;
+
+/**
+ * Hand frames from the dispatch thread to the decode thread, applying a backpressure policy when the decoder falls behind.
+ */
+
+public class FrameQueue {
+
+    /**
+     * What to do with a new frame when the queue is full.
+     */
+    public enum Policy {
+        /**
+         * Keep only the newest frame, any pending frame is superseded and dropped.
+         */
+        LATEST_ONLY,
+        /**
+         * Queue up to the capacity, then drop the oldest pending frame.
+         */
+        DROP_OLDEST,
+        /**
+         * Queue up to the capacity, then block the dispatch thread until the decoder catches up.
+         */
+        BLOCK,
+    }
+
+    private final ArrayDeque<Frame> mFrames = new ArrayDeque<>();
+    private final FrameStats mStats;
+    private Policy mPolicy = Policy.LATEST_ONLY;
+    private int mCapacity = 1;
+    private boolean mClosed = false;
+
+    FrameQueue(FrameStats stats) {
+        mStats = stats;
+    }
+
+    /**
+     * Select the policy and the capacity, the capacity is ignored with Policy.LATEST_ONLY.
+     */
+    public synchronized void setPolicy(Policy policy, int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive");
+        mPolicy = policy;
+        mCapacity = Policy.LATEST_ONLY == policy ? 1 : capacity;
+        while (mFrames.size() > mCapacity)
+            drop(mFrames.removeFirst());
+        notifyAll();
+    }
+
+    private void drop(Frame frame) {
+        mStats.addDroppedFrame();
+        frame.release();
+    }
+
+    /**
+     * Add a new frame, may block with Policy.BLOCK.
+     */
+    public synchronized void put(Frame frame) throws InterruptedException {
+        if (mClosed) {
+            drop(frame);
+            return;
+        }
+        if (Policy.BLOCK == mPolicy) {
+            while (!mClosed && mFrames.size() >= mCapacity)
+                wait();
+            if (mClosed) {
+                drop(frame);
+                return;
+            }
+        }
+        while (mFrames.size() >= mCapacity)
+            drop(mFrames.removeFirst());
+        mFrames.addLast(frame);
+        notifyAll();
+    }
+
+    /**
+     * Wait for the next frame to decode.
+     *
+     * @return The oldest pending frame, or null if the queue was closed.
+     */
+    public synchronized Frame take() throws InterruptedException {
+        while (!mClosed && mFrames.isEmpty())
+            wait();
+        if (mClosed)
+            return null;
+        Frame frame = mFrames.removeFirst();
+        notifyAll();
+        return frame;
+    }
+
+    /**
+     * Open the queue to accept frames again after close().
+     */
+    public synchronized void open() {
+        mClosed = false;
+    }
+
+    /**
+     * Drop pending frames and wake up the waiting threads.
+     */
+    public synchronized void close() {
+        mClosed = true;
+        while (!mFrames.isEmpty())
+            drop(mFrames.removeFirst());
+        notifyAll();
+    }
+}
@@ -0,0 +1,271 @@
+package me.clarius.sdk.mobileapi.example;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.view.Choreographer;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import me.clarius.sdk.mobileapi.ProcessedImageInfo;
+
+/**
+ * Draw the B-image on a SurfaceView from a dedicated render thread, paced by the display vsync.
+ * <p>
+ * Frames can be submitted from any thread. Only the latest submitted frame is kept: at each vsync, it is drawn if it
+ * changed since the last vsync, and frames replaced before being drawn are counted as skipped. Vsync callbacks are
+ * only requested while a frame is pending, so the render thread sleeps between frames and while frozen.
+ * <p>
+ * Bitmaps are retained from their pool while pending or displayed, and released once replaced.
+ * The last displayed frame is kept to redraw it when the surface changes.
+ * <p>
+ * An optional overlay layer is composed over each frame when drawing, see setOverlay().
+ */
+
+public class FrameRenderer implements SurfaceHolder.Callback {
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect mDst = new Rect();
+    private final Choreographer.FrameCallback mFrameCallback = this::doFrame;
+    private final AtomicLong mPresentedFrames = new AtomicLong();
+    private final AtomicLong mSkippedFrames = new AtomicLong();
+    private Choreographer mChoreographer = null;
+    private FrameMetrics mMetrics = null;
+
+    /**
+     * Surface to draw on, guarded by its lock so it is not destroyed while drawing.
+     */
+    private final Object mSurfaceLock = new Object();
+    private Surface mSurface = null;
+
+    /**
+     * Latest submitted frame not drawn yet, guarded by this object.
+     */
+    private Entry mPending = null;
+    private boolean mScheduled = false;
+    private Bitmap mOverlay = null;
+    private Rect mOverlayRegion = null;
+    private boolean mOverlayChanged = false;
+
+    /**
+     * Last drawn frame, only used on the render thread.
+     */
+    private Entry mCurrent = null;
+
+    private static class Entry {
+        final Bitmap bitmap;
+        final BitmapPool pool;
+        final ProcessedImageInfo info;
+
+        Entry(Bitmap bitmap, BitmapPool pool, ProcessedImageInfo info) {
+            this.bitmap = bitmap;
+            this.pool = pool;
+            this.info = info;
+        }
+
+        void release() {
+            pool.release(bitmap);
+        }
+    }
+
+    public FrameRenderer() {
+        mThread = new HandlerThread("MobileApi/Render", Process.THREAD_PRIORITY_DISPLAY);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mHandler.post(() -> mChoreographer = Choreographer.getInstance());
+    }
+
+    /**
+     * Record the presentation latencies in these metrics, see FrameMetrics.recordPresented().
+     */
+    public void setMetrics(FrameMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Show this frame at the next vsync unless replaced before, can be called from any thread.
+     *
+     * @param bitmap The image, retained until replaced on screen.
+     * @param pool The pool owning the image.
+     * @param info The image info for the presentation metrics, or null for images not from the live stream.
+     */
+    public void submit(Bitmap bitmap, BitmapPool pool, ProcessedImageInfo info) {
+        pool.retain(bitmap);
+        Entry replaced;
+        boolean schedule;
+        synchronized (this) {
+            replaced = mPending;
+            mPending = new Entry(bitmap, pool, info);
+            schedule = !mScheduled;
+            mScheduled = true;
+        }
+        if (null != replaced) {
+            mSkippedFrames.incrementAndGet();
+            replaced.release();
+        }
+        if (schedule)
+            mHandler.post(() -> mChoreographer.postFrameCallback(mFrameCallback));
+    }
+
+    /**
+     * Compose this overlay over the frames, redrawing the current frame at the next vsync if no new frame comes.
+     *
+     * @param overlay The overlay layer scaled like the frames, or null to remove it. It must not be modified.
+     * @param region The part of the overlay matching the frames when they are cropped, or null for the whole overlay.
+     */
+    public void setOverlay(Bitmap overlay, Rect region) {
+        boolean schedule;
+        synchronized (this) {
+            mOverlay = overlay;
+            mOverlayRegion = region;
+            mOverlayChanged = true;
+            schedule = !mScheduled;
+            mScheduled = true;
+        }
+        if (schedule)
+            mHandler.post(() -> mChoreographer.postFrameCallback(mFrameCallback));
+    }
+
+    public long getPresentedFrames() {
+        return mPresentedFrames.get();
+    }
+
+    /**
+     * Frames replaced by a newer frame before the vsync.
+     */
+    public long getSkippedFrames() {
+        return mSkippedFrames.get();
+    }
+
+    public void resetCounters() {
+        mPresentedFrames.set(0);
+        mSkippedFrames.set(0);
+    }
+
+    /**
+     * Stop the render thread and release the frames.
+     */
+    public void release() {
+        mHandler.post(() -> {
+            mChoreographer.removeFrameCallback(mFrameCallback);
+            Entry pending;
+            synchronized (this) {
+                pending = mPending;
+                mPending = null;
+            }
+            if (null != pending)
+                pending.release();
+            if (null != mCurrent)
+                mCurrent.release();
+            mCurrent = null;
+        });
+        mThread.quitSafely();
+    }
+
+    private void doFrame(long frameTimeNanos) {
+        Entry entry;
+        boolean overlayChanged;
+        synchronized (this) {
+            entry = mPending;
+            mPending = null;
+            mScheduled = false;
+            overlayChanged = mOverlayChanged;
+            mOverlayChanged = false;
+        }
+        if (null == entry) {
+            if (overlayChanged)
+                redraw();
+            return;
+        }
+        if (!draw(entry)) {
+            // no surface, the frame is drawn when the surface changes
+            mSkippedFrames.incrementAndGet();
+        } else {
+            mPresentedFrames.incrementAndGet();
+            FrameMetrics metrics = mMetrics;
+            if (null != metrics && null != entry.info)
+                metrics.recordPresented(entry.info);
+            if (null != entry.info)
+                StartupTrace.mark(StartupTrace.FIRST_FRAME_PRESENTED);
+        }
+        if (null != mCurrent)
+            mCurrent.release();
+        mCurrent = entry;
+    }
+
+    private void redraw() {
+        if (null != mCurrent)
+            draw(mCurrent);
+    }
+
+    /**
+     * Draw the image scaled to fit the surface and centered, keeping the aspect ratio, then the overlay over it.
+     *
+     * @return False if there is no surface to draw on.
+     */
+    private boolean draw(Entry entry) {
+        synchronized (mSurfaceLock) {
+            if (null == mSurface || !mSurface.isValid())
+                return false;
+            Canvas canvas = mSurface.lockHardwareCanvas();
+            try {
+                int width = canvas.getWidth();
+                int height = canvas.getHeight();
+                float scale = Math.min((float) width / entry.bitmap.getWidth(), (float) height / entry.bitmap.getHeight());
+                int dw = Math.round(entry.bitmap.getWidth() * scale);
+                int dh = Math.round(entry.bitmap.getHeight() * scale);
+                mDst.set((width - dw) / 2, (height - dh) / 2, (width + dw) / 2, (height + dh) / 2);
+                canvas.drawColor(Color.BLACK);
+                canvas.drawBitmap(entry.bitmap, null, mDst, mPaint);
+                Bitmap overlay;
+                Rect region;
+                synchronized (this) {
+                    overlay = mOverlay;
+                    region = mOverlayRegion;
+                }
+                if (null != overlay)
+                    canvas.drawBitmap(overlay, region, mDst, mPaint);
+            } finally {
+                mSurface.unlockCanvasAndPost(canvas);
+            }
+            return true;
+        }
+    }
+
+    @Override
+    public void surfaceCreated(SurfaceHolder holder) {
+        synchronized (mSurfaceLock) {
+            mSurface = holder.getSurface();
+        }
+    }
+
+    @Override
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+        mHandler.post(this::redraw);
+    }
+
+    /**
+     * Called on the main thread, blocks while a frame is drawn since the surface is destroyed on return.
+     */
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
+        synchronized (mSurfaceLock) {
+            mSurface = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "Rendered frames presented: %d, skipped: %d", getPresentedFrames(), getSkippedFrames());
+    }
+}
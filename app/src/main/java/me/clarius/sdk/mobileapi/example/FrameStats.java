@@ -0,0 +1,211 @@
+package me.clarius.sdk.mobileapi.example;
+
+import android.os.Looper;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics about the image path, updated from the dispatch and listener threads.
+ * <p>
+ * Time spent on the main thread is tracked separately to compare dispatch modes:
+ * in DispatchMode.MAIN_THREAD, unparceling counts towards the main thread time per frame.
+ * <p>
+ * Frame counters follow each frame through the pipeline: received from the service, then either dropped by the
+ * backpressure policy or decoded, and finally delivered to the listener.
+ */
+
+public class FrameStats {
+    private final LongAdder mReceivedFrames = new LongAdder();
+    private final LongAdder mDroppedFrames = new LongAdder();
+    private final LongAdder mDecodedFrames = new LongAdder();
+    private final LongAdder mDecodeNanos = new LongAdder();
+    private final LongAdder mDispatchedFrames = new LongAdder();
+    private final LongAdder mDispatchNanos = new LongAdder();
+    private final LongAdder mDeliveredFrames = new LongAdder();
+    private final LongAdder mDeliveryNanos = new LongAdder();
+    private final LongAdder mMainThreadNanos = new LongAdder();
+    private final LongAdder mUnchangedFrames = new LongAdder();
+    private final LongAdder mOverlayFrames = new LongAdder();
+    private final LongAdder mOverlayDecodes = new LongAdder();
+    private final LongAdder mOverlayNanos = new LongAdder();
+    private final LongAdder mSharedFrames = new LongAdder();
+    private final LongAdder mOverwrittenFrames = new LongAdder();
+
+    private static boolean isMainThread() {
+        return Looper.getMainLooper().isCurrentThread();
+    }
+
+    private static double perFrameMs(long nanos, long frames) {
+        return frames > 0 ? nanos / 1e6 / frames : 0;
+    }
+
+    void addReceivedFrame() {
+        mReceivedFrames.increment();
+    }
+
+    void addDroppedFrame() {
+        mDroppedFrames.increment();
+    }
+
+    /**
+     * Frame not decoded since unchanged, see FrameChangeDetector.
+     */
+    void addUnchangedFrame() {
+        mUnchangedFrames.increment();
+    }
+
+    /**
+     * Overlay layer received, decoded only when not cached, see OverlayCache.
+     */
+    void addOverlay(boolean decoded, long nanos) {
+        mOverlayFrames.increment();
+        mOverlayNanos.add(nanos);
+        if (decoded)
+            mOverlayDecodes.increment();
+    }
+
+    /**
+     * Frame received through shared memory, overwritten if the service reused its slot before it was read.
+     */
+    void addSharedFrame(boolean overwritten) {
+        mSharedFrames.increment();
+        if (overwritten)
+            mOverwrittenFrames.increment();
+    }
+
+    /**
+     * Time spent decoding one frame on the decode thread.
+     */
+    void addDecodeTime(long nanos) {
+        mDecodedFrames.increment();
+        mDecodeNanos.add(nanos);
+    }
+
+    /**
+     * Time spent extracting one frame on the dispatch thread.
+     */
+    void addDispatchTime(long nanos) {
+        mDispatchedFrames.increment();
+        mDispatchNanos.add(nanos);
+        if (isMainThread())
+            mMainThreadNanos.add(nanos);
+    }
+
+    /**
+     * Time spent notifying the listener of one frame.
+     */
+    void addDeliveryTime(long nanos) {
+        mDeliveredFrames.increment();
+        mDeliveryNanos.add(nanos);
+        if (isMainThread())
+            mMainThreadNanos.add(nanos);
+    }
+
+    public long getReceivedFrames() {
+        return mReceivedFrames.sum();
+    }
+
+    public long getDroppedFrames() {
+        return mDroppedFrames.sum();
+    }
+
+    public long getDecodedFrames() {
+        return mDecodedFrames.sum();
+    }
+
+    public long getDeliveredFrames() {
+        return mDeliveredFrames.sum();
+    }
+
+    public long getUnchangedFrames() {
+        return mUnchangedFrames.sum();
+    }
+
+    /**
+     * Ratio of the dispatched frames not decoded since unchanged.
+     */
+    public double getUnchangedRatio() {
+        long dispatched = mDispatchedFrames.sum();
+        return dispatched > 0 ? (double) getUnchangedFrames() / dispatched : 0;
+    }
+
+    public long getOverlayFrames() {
+        return mOverlayFrames.sum();
+    }
+
+    public long getOverlayDecodes() {
+        return mOverlayDecodes.sum();
+    }
+
+    public double getOverlayMsPerFrame() {
+        return perFrameMs(mOverlayNanos.sum(), mOverlayFrames.sum());
+    }
+
+    public long getSharedFrames() {
+        return mSharedFrames.sum();
+    }
+
+    public long getOverwrittenFrames() {
+        return mOverwrittenFrames.sum();
+    }
+
+    /**
+     * Average time spent on the main thread for each delivered frame, in milliseconds.
+     */
+    public double getMainThreadMsPerFrame() {
+        return perFrameMs(mMainThreadNanos.sum(), mDeliveredFrames.sum());
+    }
+
+    public double getDispatchMsPerFrame() {
+        return perFrameMs(mDispatchNanos.sum(), mDispatchedFrames.sum());
+    }
+
+    public double getDecodeMsPerFrame() {
+        return perFrameMs(mDecodeNanos.sum(), mDecodedFrames.sum());
+    }
+
+    /**
+     * Total decoding time, to compute the decoding time over a window.
+     */
+    public long getDecodeNanos() {
+        return mDecodeNanos.sum();
+    }
+
+    public double getDeliveryMsPerFrame() {
+        return perFrameMs(mDeliveryNanos.sum(), mDeliveredFrames.sum());
+    }
+
+    public void reset() {
+        mReceivedFrames.reset();
+        mDroppedFrames.reset();
+        mDecodedFrames.reset();
+        mDecodeNanos.reset();
+        mDispatchedFrames.reset();
+        mDispatchNanos.reset();
+        mDeliveredFrames.reset();
+        mDeliveryNanos.reset();
+        mMainThreadNanos.reset();
+        mUnchangedFrames.reset();
+        mOverlayFrames.reset();
+        mOverlayDecodes.reset();
+        mOverlayNanos.reset();
+        mSharedFrames.reset();
+        mOverwrittenFrames.reset();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+            "Frames received: %d, dropped: %d, decoded: %d, delivered: %d\n"
+                + "Unchanged: %d (%.1f%%)\n"
+                + "Overlays: %d, decoded: %d, %.2f ms/overlay\n"
+                + "Shared memory: %d, overwritten: %d\n"
+                + "Main thread: %.2f ms/frame\nDispatch: %.2f ms/frame\nDecode: %.2f ms/frame\nDelivery: %.2f ms/frame",
+            getReceivedFrames(), getDroppedFrames(), getDecodedFrames(), getDeliveredFrames(),
+            getUnchangedFrames(), getUnchangedRatio() * 100,
+            getOverlayFrames(), getOverlayDecodes(), getOverlayMsPerFrame(),
+            getSharedFrames(), getOverwrittenFrames(),
+            getMainThreadMsPerFrame(), getDispatchMsPerFrame(), getDecodeMsPerFrame(), getDeliveryMsPerFrame());
+    }
+}
@@ -1,8 +1,11 @@
 package me.clarius.sdk.mobileapi.example;
 
+import android.os.Build;
 import android.os.Bundle;
 import android.util.Size;
 
+import androidx.annotation.RequiresApi;
+
 import me.clarius.sdk.mobileapi.MobileApi;
 
 /**
@@ -10,6 +13,22 @@ import me.clarius.sdk.mobileapi.MobileApi;
  */
 
 public class ImageConfig {
+    /**
+     * Compression type requesting uncompressed frames, see FrameFormat.RAW.
+     * <p>
+     * Not a MobileApi value: only LocalMobileApiService understands it, to compare formats with the load generator.
+     * The Clarius App does not define it. Raw frames are recognized by their length of 4 bytes per pixel, and
+     * frames are decoded according to their actual format anyway.
+     */
+    public static final String COMPRESSION_TYPE_RAW = "raw";
+
+    /**
+     * Load profile keys, only used by LocalMobileApiService and ignored by the Clarius App.
+     */
+    public static final String KEY_LOAD_FPS = "me.clarius.sdk.mobileapi.example.LOAD_FPS";
+    public static final String KEY_LOAD_JITTER_MS = "me.clarius.sdk.mobileapi.example.LOAD_JITTER_MS";
+    public static final String KEY_LOAD_BURST_FRAMES = "me.clarius.sdk.mobileapi.example.LOAD_BURST_FRAMES";
+
     private final Bundle mBundle;
 
     /**
@@ -20,6 +39,17 @@ public class ImageConfig {
         mBundle.putSize(MobileApi.KEY_IMAGE_SIZE, new Size(width, height));
     }
 
+    private ImageConfig(Bundle bundle) {
+        mBundle = bundle;
+    }
+
+    /**
+     * Copy this configuration, to derive a new one without changing this one.
+     */
+    public ImageConfig copy() {
+        return new ImageConfig(new Bundle(mBundle));
+    }
+
     /**
      * Set the image dimensions.
      */
@@ -29,7 +59,7 @@ public class ImageConfig {
     }
 
     /**
-     * Set the optional compression type.
+     * Set the optional compression type, MobileApi.COMPRESSION_TYPE_* or COMPRESSION_TYPE_RAW.
      */
     public ImageConfig setCompressionType(String type) {
         mBundle.putString(MobileApi.KEY_COMPRESSION_TYPE, type);
@@ -52,6 +82,25 @@ public class ImageConfig {
         return this;
     }
 
+    /**
+     * Set the frame rate, timing jitter and extra frames sent every second by LocalMobileApiService.
+     */
+    public ImageConfig setLoadProfile(double fps, double jitterMs, int burstFrames) {
+        mBundle.putDouble(KEY_LOAD_FPS, fps);
+        mBundle.putDouble(KEY_LOAD_JITTER_MS, jitterMs);
+        mBundle.putInt(KEY_LOAD_BURST_FRAMES, burstFrames);
+        return this;
+    }
+
+    /**
+     * Offer the shared memory frame transport to the service, see SharedFrameRing.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.O_MR1)
+    public ImageConfig setSharedFrameRing(SharedFrameRing ring) {
+        ring.putInto(mBundle);
+        return this;
+    }
+
     /**
      * Build the bundle for MSG_CONFIGURE_IMAGE.
      */
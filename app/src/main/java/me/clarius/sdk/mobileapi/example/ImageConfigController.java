@@ -0,0 +1,256 @@
+package me.clarius.sdk.mobileapi.example;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.util.Log;
+import android.util.Size;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import me.clarius.sdk.mobileapi.MobileApi;
+
+/**
+ * Send the image configuration and optionally adapt it to the measured load.
+ * <p>
+ * When adaptive, the controller samples the frame statistics periodically and walks a ladder of configurations,
+ * from the base configuration (best quality) to smaller and more compressed images:
+ * - it steps down when frames are dropped or when decoding takes more than the frame budget;
+ * - it steps up when frames are decoded well within budget.
+ * <p>
+ * The base configuration is first fitted to the view size, keeping its aspect ratio and never exceeding it, so the
+ * service does not send larger images than displayed. View size changes are debounced to ignore resize animations.
+ * <p>
+ * Hysteresis prevents oscillations: stepping down needs several bad windows in a row, stepping up needs more good windows
+ * in a row, and the window following a change is ignored since it still contains frames in the previous configuration.
+ */
+
+public class ImageConfigController {
+
+    private static final String TAG = "MobileApi/Config";
+
+    private static final long WINDOW_MS = 1000;
+    private static final long RESIZE_DEBOUNCE_MS = 500;
+    private static final int BAD_WINDOWS_TO_STEP_DOWN = 2;
+    private static final int GOOD_WINDOWS_TO_STEP_UP = 5;
+    private static final double MAX_DROP_RATIO = 0.05;
+    private static final double MAX_BUDGET_RATIO = 0.8;
+    private static final double MIN_BUDGET_RATIO = 0.4;
+    private static final double[] SCALES = {1.0, 0.85, 0.7, 0.5};
+    private static final int QUALITY_STEP = 10;
+    private static final int MIN_QUALITY = 40;
+
+    private final ApiHelper mApi;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mSampler = this::sample;
+    private final Runnable mResize = this::resize;
+    private final List<ImageConfig> mLadder = new ArrayList<>();
+    private final double mTargetFps;
+    private ImageConfig mBase = null;
+    private Size mViewSize = null;
+    private boolean mStarted = false;
+    private boolean mAdaptiveRequested = false;
+    private boolean mAdaptive = false;
+    private boolean mFrozen = false;
+    private int mLevel = 0;
+    private int mBadWindows = 0;
+    private int mGoodWindows = 0;
+    private boolean mSkipWindow = false;
+    private long mLastReceived = 0;
+    private long mLastDropped = 0;
+    private long mLastDecoded = 0;
+    private long mLastDecodeNanos = 0;
+
+    /**
+     * Construct a controller, initially stopped.
+     *
+     * @param api Where to send the configuration and read the statistics.
+     * @param targetFps The frame rate to sustain, defines the decoding budget of each frame.
+     */
+    public ImageConfigController(ApiHelper api, double targetFps) {
+        mApi = api;
+        mTargetFps = targetFps;
+    }
+
+    /**
+     * Send the base configuration and start adapting if requested. Must be called on the main thread.
+     *
+     * @param base The best configuration, usually built from the preferences.
+     * @param adaptive Whether to adapt the configuration to the load.
+     */
+    public void start(ImageConfig base, boolean adaptive) {
+        stop();
+        mBase = base;
+        mAdaptiveRequested = adaptive;
+        mStarted = true;
+        restart();
+    }
+
+    /**
+     * Stop adapting, the last configuration remains active. Must be called on the main thread.
+     */
+    public void stop() {
+        mHandler.removeCallbacks(mSampler);
+        mHandler.removeCallbacks(mResize);
+        mAdaptive = false;
+        mStarted = false;
+    }
+
+    /**
+     * Pause sampling while frozen, since no frames arrive. Must be called on the main thread.
+     */
+    public void setFrozen(boolean frozen) {
+        if (frozen == mFrozen)
+            return;
+        mFrozen = frozen;
+        mHandler.removeCallbacks(mSampler);
+        if (!frozen && mAdaptive) {
+            // the first window may contain the end of the freeze
+            resetWindow();
+            mSkipWindow = true;
+            mHandler.postDelayed(mSampler, WINDOW_MS);
+        }
+    }
+
+    /**
+     * Fit the configuration to the displayed size once it stops changing. Must be called on the main thread.
+     *
+     * @param viewSize The size of the view showing the image, in pixels.
+     */
+    public void setViewSize(Size viewSize) {
+        if (viewSize.equals(mViewSize))
+            return;
+        mViewSize = viewSize;
+        mHandler.removeCallbacks(mResize);
+        if (mStarted)
+            mHandler.postDelayed(mResize, RESIZE_DEBOUNCE_MS);
+    }
+
+    private void resize() {
+        if (!mStarted)
+            return;
+        Log.i(TAG, "Fitting image config to view size " + mViewSize);
+        restart();
+    }
+
+    private void restart() {
+        mHandler.removeCallbacks(mSampler);
+        buildLadder(fitToView(mBase));
+        mAdaptive = mAdaptiveRequested;
+        mLevel = 0;
+        send();
+        if (mAdaptive && !mFrozen)
+            mHandler.postDelayed(mSampler, WINDOW_MS);
+    }
+
+    /**
+     * Scale the configuration down to fit the view, if smaller.
+     */
+    private ImageConfig fitToView(ImageConfig base) {
+        Size size = base.bundle().getSize(MobileApi.KEY_IMAGE_SIZE);
+        if (null == mViewSize || null == size || mViewSize.getWidth() <= 0 || mViewSize.getHeight() <= 0)
+            return base;
+        double scale = Math.min((double) mViewSize.getWidth() / size.getWidth(), (double) mViewSize.getHeight() / size.getHeight());
+        if (scale >= 1)
+            return base;
+        int width = Math.max(1, (int) Math.round(size.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(size.getHeight() * scale));
+        return base.copy().setSize(width, height);
+    }
+
+    /**
+     * The configuration currently requested from the service, or null if never started.
+     */
+    public ImageConfig current() {
+        return mLadder.isEmpty() ? null : mLadder.get(mLevel);
+    }
+
+    /**
+     * Build the ladder so each rung strictly lowers the load: reduce the size first, since the decoding time follows
+     * the pixel count, then the quality of the smallest size (JPEG only), which mostly reduces the transfer.
+     */
+    private void buildLadder(ImageConfig base) {
+        mLadder.clear();
+        Size size = base.bundle().getSize(MobileApi.KEY_IMAGE_SIZE);
+        boolean jpeg = MobileApi.COMPRESSION_TYPE_JPEG.equals(base.bundle().getString(MobileApi.KEY_COMPRESSION_TYPE));
+        int quality = base.bundle().getInt(MobileApi.KEY_COMPRESSION_QUALITY);
+        int width = 0;
+        int height = 0;
+        for (double scale : SCALES) {
+            int w = Math.max(1, (int) Math.round(size.getWidth() * scale));
+            int h = Math.max(1, (int) Math.round(size.getHeight() * scale));
+            // small images may round to the same size
+            if (w == width && h == height)
+                continue;
+            width = w;
+            height = h;
+            mLadder.add(base.copy().setSize(width, height));
+        }
+        if (jpeg) {
+            for (int q = quality - QUALITY_STEP; q >= MIN_QUALITY; q -= QUALITY_STEP)
+                mLadder.add(base.copy().setSize(width, height).setCompressionQuality(q));
+        }
+    }
+
+    private void send() {
+        resetWindow();
+        mSkipWindow = true;
+        try {
+            mApi.sendImageConfig(current());
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void resetWindow() {
+        FrameStats stats = mApi.getStats();
+        mLastReceived = stats.getReceivedFrames();
+        mLastDropped = stats.getDroppedFrames();
+        mLastDecoded = stats.getDecodedFrames();
+        mLastDecodeNanos = stats.getDecodeNanos();
+        mBadWindows = 0;
+        mGoodWindows = 0;
+    }
+
+    /**
+     * Evaluate the last window and move along the ladder if needed.
+     */
+    private void sample() {
+        if (!mAdaptive || mFrozen)
+            return;
+        mHandler.postDelayed(mSampler, WINDOW_MS);
+        FrameStats stats = mApi.getStats();
+        long received = stats.getReceivedFrames() - mLastReceived;
+        long dropped = stats.getDroppedFrames() - mLastDropped;
+        long decoded = stats.getDecodedFrames() - mLastDecoded;
+        long decodeNanos = stats.getDecodeNanos() - mLastDecodeNanos;
+        int badWindows = mBadWindows;
+        int goodWindows = mGoodWindows;
+        resetWindow();
+        if (mSkipWindow || received == 0 || decoded == 0) {
+            // nothing to evaluate: first window after a change, frozen or disconnected
+            mSkipWindow = false;
+            return;
+        }
+        double budgetMs = 1000 / mTargetFps;
+        double decodeMs = decodeNanos / 1e6 / decoded;
+        double dropRatio = (double) dropped / received;
+        if (dropRatio > MAX_DROP_RATIO || decodeMs > budgetMs * MAX_BUDGET_RATIO) {
+            mBadWindows = badWindows + 1;
+            if (mBadWindows >= BAD_WINDOWS_TO_STEP_DOWN && mLevel + 1 < mLadder.size())
+                step(+1, decodeMs, dropRatio);
+        } else if (decodeMs < budgetMs * MIN_BUDGET_RATIO && dropped == 0) {
+            mGoodWindows = goodWindows + 1;
+            if (mGoodWindows >= GOOD_WINDOWS_TO_STEP_UP && mLevel > 0)
+                step(-1, decodeMs, dropRatio);
+        }
+    }
+
+    private void step(int direction, double decodeMs, double dropRatio) {
+        mLevel += direction;
+        Log.i(TAG, "Adapting image config to level " + mLevel + "/" + (mLadder.size() - 1)
+            + ", decode: " + decodeMs + " ms, dropped: " + Math.round(dropRatio * 100) + "%");
+        send();
+    }
+}
@@ -1,10 +1,12 @@
 package me.clarius.sdk.mobileapi.example;
 
 import android.os.Bundle;
+import android.util.Size;
 import android.view.LayoutInflater;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ImageView;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -14,10 +16,13 @@ import androidx.lifecycle.ViewModelProvider;
 /**
  * Display the B-Image
  * <p>
- * The bitmap data is provided by the observable LiveData object shared in the ImageModelView class.
+ * The images are drawn on a SurfaceView by the renderer shared in the ImageModelView class.
  */
 
 public class ImageFragment extends Fragment {
+    private SurfaceView surfaceView = null;
+    private FrameRenderer renderer = null;
+
     @Override
     public View onCreateView(@NonNull LayoutInflater inflater, @Nullable ViewGroup container, @Nullable Bundle savedInstanceState) {
         return inflater.inflate(R.layout.image_fragment, container, false);
@@ -26,8 +31,22 @@ public class ImageFragment extends Fragment {
     @Override
     public void onViewCreated(@NonNull View view, @Nullable Bundle savedInstanceState) {
         super.onViewCreated(view, savedInstanceState);
-        ImageView imageView = requireActivity().findViewById(R.id.imageView);
+        surfaceView = view.findViewById(R.id.surfaceView);
         ImageViewModel viewModel = new ViewModelProvider(requireActivity()).get(ImageViewModel.class);
-        viewModel.getBImage().observe(getViewLifecycleOwner(), imageView::setImageBitmap);
+        renderer = viewModel.getRenderer();
+        surfaceView.getHolder().addCallback(renderer);
+        surfaceView.addOnLayoutChangeListener((v, left, top, right, bottom, oldLeft, oldTop, oldRight, oldBottom) ->
+            viewModel.setViewSize(new Size(right - left, bottom - top)));
+    }
+
+    @Override
+    public void onDestroyView() {
+        // the surface is destroyed after the view is detached, once the callback is removed: the renderer, which
+        // outlives the view, must stop drawing on it now
+        SurfaceHolder holder = surfaceView.getHolder();
+        renderer.surfaceDestroyed(holder);
+        holder.removeCallback(renderer);
+        surfaceView = null;
+        super.onDestroyView();
     }
 }
@@ -2,24 +2,51 @@ package me.clarius.sdk.mobileapi.example;
 
 import android.graphics.Bitmap;
 
+import android.util.Size;
+
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
 import androidx.lifecycle.ViewModel;
 
+import me.clarius.sdk.mobileapi.ProcessedImageInfo;
+
 /**
  * Share data from activity to fragments.
  * <p>
  * https://developer.android.com/guide/fragments/communicate
+ * <p>
+ * Images are handed to the renderer drawn by ImageFragment, which outlives configuration changes with this model.
  */
 
 public class ImageViewModel extends ViewModel {
-    private final MutableLiveData<Bitmap> bImageData = new MutableLiveData<>();
+    private final FrameRenderer renderer = new FrameRenderer();
+    private final MutableLiveData<Size> viewSize = new MutableLiveData<>();
+
+    public FrameRenderer getRenderer() {
+        return renderer;
+    }
+
+    /**
+     * Size of the view showing the image, updated on layout changes.
+     */
+    public LiveData<Size> getViewSize() {
+        return viewSize;
+    }
+
+    public void setViewSize(Size size) {
+        if (!size.equals(viewSize.getValue()))
+            viewSize.setValue(size);
+    }
 
-    public LiveData<Bitmap> getBImage() {
-        return bImageData;
+    /**
+     * Show the image at the next vsync, see FrameRenderer.submit().
+     */
+    public void setBImage(Bitmap bImage, BitmapPool bImagePool, ProcessedImageInfo bImageInfo) {
+        renderer.submit(bImage, bImagePool, bImageInfo);
     }
 
-    public void setBImage(Bitmap bImage) {
-        bImageData.setValue(bImage);
+    @Override
+    protected void onCleared() {
+        renderer.release();
     }
 }
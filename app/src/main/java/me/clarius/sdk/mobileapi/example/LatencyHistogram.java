@@ -0,0 +1,92 @@
+package me.clarius.sdk.mobileapi.example;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-memory latency histogram with a relative precision of about 6%, from 1 microsecond to about 33 seconds
+ * (2^25 microseconds), larger values being counted in the last bucket.
+ * <p>
+ * Values are counted in buckets of 16 sub-buckets per power of two, so record() itself does not allocate, whatever
+ * the measured path does, and percentiles are approximated by the middle of their bucket. The maximum is exact.
+ */
+
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 24;
+    private static final int BUCKETS = SUB_BUCKETS * (MAX_EXPONENT - SUB_BUCKET_BITS + 2);
+
+    private final long[] mCounts = new long[BUCKETS];
+    private long mCount = 0;
+    private long mSumMicros = 0;
+    private long mMaxMicros = 0;
+
+    private static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS)
+            return (int) Math.max(0, micros);
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT)
+            return BUCKETS - 1;
+        int shift = exponent - SUB_BUCKET_BITS;
+        int sub = (int) (micros >> shift) - SUB_BUCKETS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + sub;
+    }
+
+    private static double middleOf(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        int sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        long lower = (long) (SUB_BUCKETS + sub) << shift;
+        return lower + ((1L << shift) - 1) / 2.0;
+    }
+
+    /**
+     * Count one value, negative values are counted as zero.
+     */
+    public synchronized void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        ++mCounts[bucketOf(micros)];
+        ++mCount;
+        mSumMicros += micros;
+        mMaxMicros = Math.max(mMaxMicros, micros);
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    /**
+     * Approximate percentile in milliseconds, 0 if empty.
+     *
+     * @param percentile Between 0 and 100.
+     */
+    public synchronized double getPercentileMs(double percentile) {
+        if (0 == mCount)
+            return 0;
+        long rank = (long) Math.ceil(percentile / 100 * mCount);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += mCounts[i];
+            if (seen >= Math.max(1, rank))
+                return Math.min(middleOf(i), mMaxMicros) / 1000;
+        }
+        return mMaxMicros / 1000.0;
+    }
+
+    public synchronized double getMeanMs() {
+        return 0 == mCount ? 0 : mSumMicros / 1000.0 / mCount;
+    }
+
+    public synchronized double getMaxMs() {
+        return mMaxMicros / 1000.0;
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(mCounts, 0);
+        mCount = 0;
+        mSumMicros = 0;
+        mMaxMicros = 0;
+    }
+}
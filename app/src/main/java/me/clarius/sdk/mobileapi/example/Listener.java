@@ -15,10 +15,16 @@ import android.widget.Toast;
 import androidx.lifecycle.ViewModelProvider;
 import androidx.preference.PreferenceManager;
 
+import java.io.File;
 import java.io.IOException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.Locale;
 import java.util.Optional;
+import java.util.function.Consumer;
 
 import me.clarius.sdk.mobileapi.ButtonInfo;
 import me.clarius.sdk.mobileapi.PatientInfo;
@@ -38,6 +44,13 @@ public class Listener implements ApiHelper.Listener {
     private final ApiHelper api;
     private final ImageViewModel viewModel;
     private final RawDataHandleMap rawDataMap;
+    private final ImageConfigController configController;
+    private final CineBuffer cine;
+    private final FrameDecoder cineDecoder;
+    private int cineIndex = -1;
+    private SessionRecorder recorder = null;
+    private SessionReplay replay = null;
+    private LoadSweep loadSweep = null;
     private final Prop<String> gainProp = new Prop<>();
     private final Prop<String> depthProp = new Prop<>();
     private final Prop<Size> imageSizeProp = new Prop<>();
@@ -51,7 +64,36 @@ public class Listener implements ApiHelper.Listener {
         this.context = context;
         this.api = api;
         this.viewModel = new ViewModelProvider(context).get(ImageViewModel.class);
+        this.viewModel.getRenderer().setMetrics(api.getMetrics());
+        this.viewModel.getViewSize().observe(context, this::onViewSizeChanged);
         this.rawDataMap = new RawDataHandleMap(context, CLARIUS_PACKAGE_NAME, FILE_PROVIDER_NAME, FILE_PROVIDER_PATH);
+        this.configController = new ImageConfigController(api, context.getResources().getInteger(R.integer.adaptive_target_fps));
+        this.cine = new CineBuffer(context.getResources().getInteger(R.integer.cine_budget_mb) * 1024 * 1024,
+            context.getResources().getInteger(R.integer.cine_max_frames), true);
+        this.cineDecoder = new FrameDecoder(api.getBitmapPool());
+        api.addFrameObserver(cine);
+    }
+
+    /**
+     * Detach from the helper when the activity is destroyed: the helper belongs to the application and outlives
+     * this listener, so the observers and the timers started here must not keep running.
+     */
+    public void release() {
+        api.removeFrameObserver(cine);
+        cine.clear();
+        if (null != recorder) {
+            stopRecording();
+            recorder = null;
+        }
+        if (null != replay) {
+            replay.stop();
+            replay = null;
+        }
+        if (null != loadSweep) {
+            loadSweep.stop();
+            loadSweep = null;
+        }
+        configController.stop();
     }
 
     private void logToast(String message) {
@@ -64,11 +106,16 @@ public class Listener implements ApiHelper.Listener {
     }
 
     private void sendImageConfig(SharedPreferences preferences) {
-        try {
-            api.sendImageConfig(Utils.createImageConfig(context, preferences));
-        } catch (RemoteException e) {
-            e.printStackTrace();
-        }
+        configController.start(Utils.createImageConfig(context, preferences),
+            preferences.getBoolean("adaptive_image_config", context.getResources().getBoolean(R.bool.default_adaptive_image_config)));
+    }
+
+    /**
+     * Decode at the displayed size right away, and ask the service for that size once resizing settles.
+     */
+    private void onViewSizeChanged(Size size) {
+        api.setDecodeTargetSize(size.getWidth(), size.getHeight());
+        configController.setViewSize(size);
     }
 
     private SharedPreferences getDefaultSharedPreferences() {
@@ -80,17 +127,78 @@ public class Listener implements ApiHelper.Listener {
         logToast("Connected: " + connected);
         if (connected) {
             sendImageConfig(getDefaultSharedPreferences());
+        } else {
+            configController.stop();
+            if (null != loadSweep) {
+                loadSweep.stop();
+                loadSweep = null;
+            }
+        }
+    }
+
+    /**
+     * Pause adapting the image configuration while the service is lost: it is replayed as is once reconnected.
+     */
+    @Override
+    public void onReconnecting(boolean reconnecting) {
+        logToast(reconnecting ? "Connection lost, reconnecting" : "Reconnected");
+        configController.setFrozen(reconnecting || api.isFrozen());
+    }
+
+    /**
+     * Find the max frame rate sustained with the configuration from the preferences, see LoadSweep.
+     * The preferred configuration is restored once finished.
+     */
+    public void runLoadSweep(Consumer<String> onReport) {
+        if (null != loadSweep) {
+            showToast(context.getString(R.string.load_sweep_running));
+            return;
         }
+        SharedPreferences preferences = getDefaultSharedPreferences();
+        configController.stop();
+        loadSweep = new LoadSweep(api, Utils.createImageConfig(context, preferences),
+            context.getResources().getInteger(R.integer.load_sweep_step_fps),
+            context.getResources().getInteger(R.integer.load_sweep_step_fps),
+            context.getResources().getInteger(R.integer.load_sweep_max_fps));
+        loadSweep.start(report -> {
+            loadSweep = null;
+            sendImageConfig(preferences);
+            onReport.accept(report);
+        });
     }
 
     @Override
     public void onFrozenChanged(boolean frozen) {
         logToast("Frozen: " + frozen);
+        cine.setFrozen(frozen);
+        configController.setFrozen(frozen);
+        cineIndex = frozen ? cine.size() - 1 : -1;
+    }
+
+    /**
+     * Show a previous frame from the cine buffer, only while frozen.
+     *
+     * @param step Number of frames to move, negative to go back in time.
+     */
+    public void scrubCine(int step) {
+        if (cineIndex < 0 || cine.size() == 0) {
+            showToast("Freeze to review the cine");
+            return;
+        }
+        cineIndex = Math.max(0, Math.min(cine.size() - 1, cineIndex + step));
+        Bitmap bitmap = cine.decode(cineIndex, cineDecoder);
+        try {
+            viewModel.setBImage(bitmap, api.getBitmapPool(), null);
+        } finally {
+            api.getBitmapPool().release(bitmap);
+        }
+        Log.v(TAG, "Cine frame " + (cineIndex + 1) + "/" + cine.size() + ", " + cine.getUsedBytes() / 1024 + " KiB");
     }
 
     @Override
     public void onFrozenReturned(boolean frozen) {
         logToast("Reply for frozen: " + frozen);
+        configController.setFrozen(frozen);
     }
 
     @Override
@@ -119,12 +227,76 @@ public class Listener implements ApiHelper.Listener {
 
     @Override
     public void onNewProcessedImage(Bitmap imageData, ProcessedImageInfo imageInfo, ArrayList<PosInfo> posInfo) {
-        viewModel.setBImage(imageData);
+        viewModel.setBImage(imageData, api.getBitmapPool(), imageInfo);
         if (imageSizeProp.update(new Size(imageInfo.width, imageInfo.height))) {
             logToast("Image size: " + imageInfo.width + " x " + imageInfo.height);
         }
     }
 
+    /**
+     * Start or stop recording the session in the app storage.
+     */
+    public void toggleRecording() {
+        if (null == recorder) {
+            File dir = new File(context.getExternalFilesDir("sessions"),
+                new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date()));
+            try {
+                recorder = new SessionRecorder(dir,
+                    context.getResources().getInteger(R.integer.session_segment_mb) * 1024 * 1024,
+                    context.getResources().getInteger(R.integer.session_segment_records));
+            } catch (IOException e) {
+                logToast("Cannot record session: " + e.getMessage());
+                return;
+            }
+            api.addFrameObserver(recorder);
+            api.addMessageObserver(recorder);
+            logToast("Recording session in " + dir);
+        } else {
+            stopRecording();
+            logToast("Recorded " + recorder.getRecordedCount() + " messages, dropped " + recorder.getDroppedCount());
+            recorder = null;
+        }
+    }
+
+    private void stopRecording() {
+        api.removeFrameObserver(recorder);
+        api.removeMessageObserver(recorder);
+        recorder.stop();
+    }
+
+    /**
+     * Replay the last recorded session, or stop the replay in progress.
+     *
+     * @param pacing How fast to replay, use SessionReplay.Pacing.AS_FAST_AS_POSSIBLE to measure the throughput.
+     */
+    public void toggleReplay(SessionReplay.Pacing pacing) {
+        if (null != replay) {
+            replay.stop();
+            return;
+        }
+        File[] sessions = context.getExternalFilesDir("sessions").listFiles(File::isDirectory);
+        if (null == sessions || sessions.length == 0) {
+            logToast("No recorded session");
+            return;
+        }
+        File last = Collections.max(Arrays.asList(sessions));
+        SessionReplay newReplay = new SessionReplay(last);
+        replay = newReplay;
+        logToast("Replaying " + last.getName());
+        newReplay.start(api, pacing, 1, () -> context.runOnUiThread(() -> {
+            // released meanwhile
+            if (replay != newReplay)
+                return;
+            logToast(String.format(Locale.US, "Replayed %d frames at %.1f fps", newReplay.getReplayedFrames(), newReplay.getFrameRate()));
+            replay = null;
+        }));
+    }
+
+    @Override
+    public void onNewOverlay(Bitmap overlay, Rect region, ProcessedImageInfo overlayInfo) {
+        viewModel.getRenderer().setOverlay(overlay, region);
+    }
+
     @Override
     public void onButtonEvent(ButtonInfo info) {
         logToast(Strings.toString(info));
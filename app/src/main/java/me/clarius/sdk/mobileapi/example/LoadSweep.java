@@ -0,0 +1,124 @@
+package me.clarius.sdk.mobileapi.example;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.Locale;
+import java.util.function.Consumer;
+
+/**
+ * Find the highest frame rate the client sustains without dropping frames.
+ * <p>
+ * Meant to run against LocalMobileApiService: the requested frame rate is raised step by step with the load profile
+ * of the image configuration, and each step is measured over one window after letting the pipeline settle.
+ * The sweep stops at the first step dropping frames or delivering noticeably less than requested.
+ */
+
+public class LoadSweep {
+
+    private static final String TAG = "MobileApi/LoadSweep";
+    private static final long SETTLE_MS = 1000;
+    private static final long WINDOW_MS = 2000;
+    private static final double MAX_DROP_RATIO = 0.01;
+    private static final double MIN_DELIVERY_RATIO = 0.95;
+
+    private final ApiHelper mApi;
+    private final ImageConfig mBase;
+    private final double mStartFps;
+    private final double mStepFps;
+    private final double mMaxFps;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final StringBuilder mReport = new StringBuilder();
+    private Consumer<String> mOnFinished = null;
+    private double mFps = 0;
+    private double mBestFps = 0;
+    private long mReceived = 0;
+    private long mDropped = 0;
+    private long mDelivered = 0;
+
+    /**
+     * Construct a sweep, started with start().
+     *
+     * @param api Where to send the configuration and read the statistics.
+     * @param base The image configuration to load the client with, its load profile is overwritten.
+     * @param startFps The first frame rate to try.
+     * @param stepFps The frame rate increment between steps.
+     * @param maxFps The frame rate at which to stop even if frames are not dropped.
+     */
+    public LoadSweep(ApiHelper api, ImageConfig base, double startFps, double stepFps, double maxFps) {
+        mApi = api;
+        mBase = base;
+        mStartFps = startFps;
+        mStepFps = stepFps;
+        mMaxFps = maxFps;
+    }
+
+    /**
+     * Start the sweep. Must be called on the main thread.
+     *
+     * @param onFinished Receives the report on the main thread.
+     */
+    public void start(Consumer<String> onFinished) {
+        stop();
+        mOnFinished = onFinished;
+        mReport.setLength(0);
+        mBestFps = 0;
+        step(mStartFps);
+    }
+
+    /**
+     * Stop the sweep without reporting.
+     */
+    public void stop() {
+        mHandler.removeCallbacksAndMessages(null);
+        mOnFinished = null;
+    }
+
+    private void step(double fps) {
+        mFps = fps;
+        try {
+            mApi.sendImageConfig(mBase.copy().setLoadProfile(fps, 0, 0));
+        } catch (RemoteException e) {
+            finish("Failed to send the configuration: " + e);
+            return;
+        }
+        mHandler.postDelayed(this::beginWindow, SETTLE_MS);
+    }
+
+    private void beginWindow() {
+        FrameStats stats = mApi.getStats();
+        mReceived = stats.getReceivedFrames();
+        mDropped = stats.getDroppedFrames();
+        mDelivered = stats.getDeliveredFrames();
+        mHandler.postDelayed(this::endWindow, WINDOW_MS);
+    }
+
+    private void endWindow() {
+        FrameStats stats = mApi.getStats();
+        long received = stats.getReceivedFrames() - mReceived;
+        long dropped = stats.getDroppedFrames() - mDropped;
+        double deliveredFps = (stats.getDeliveredFrames() - mDelivered) * 1000.0 / WINDOW_MS;
+        double dropRatio = received > 0 ? (double) dropped / received : 1;
+        String line = String.format(Locale.US, "%.0f fps: delivered %.1f fps, dropped %d/%d", mFps, deliveredFps, dropped, received);
+        Log.v(TAG, line);
+        mReport.append(line).append('\n');
+        boolean sustained = dropRatio <= MAX_DROP_RATIO && deliveredFps >= mFps * MIN_DELIVERY_RATIO;
+        if (sustained)
+            mBestFps = mFps;
+        if (!sustained || mFps + mStepFps > mMaxFps) {
+            finish(String.format(Locale.US, "Max sustained: %.0f fps", mBestFps));
+        } else {
+            step(mFps + mStepFps);
+        }
+    }
+
+    private void finish(String conclusion) {
+        Consumer<String> onFinished = mOnFinished;
+        mOnFinished = null;
+        mReport.append('\n').append(conclusion);
+        if (null != onFinished)
+            onFinished.accept(mReport.toString());
+    }
+}
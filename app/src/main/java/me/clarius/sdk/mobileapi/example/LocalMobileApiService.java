@@ -0,0 +1,364 @@
+package me.clarius.sdk.mobileapi.example;
+
+import android.app.Service;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.util.Log;
+import android.util.Size;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import me.clarius.sdk.mobileapi.MobileApi;
+import me.clarius.sdk.mobileapi.PatientInfo;
+import me.clarius.sdk.mobileapi.PosInfo;
+import me.clarius.sdk.mobileapi.ProcessedImageInfo;
+
+/**
+ * Stand-in for the Clarius App MobileApi service, to test and load the client without a scanner.
+ * <p>
+ * Speaks the same protocol as the real service: registration, image configuration, processed images,
+ * replies to the MSG_GET_* requests and user functions changing the depth, gain and freeze state.
+ * Frames are synthetic speckle images encoded with the configured size, compression type and quality, and sent at
+ * the rate, jitter and bursts set with ImageConfig.setLoadProfile().
+ * Frames are written in the shared memory ring of the last configuration when it offers one, see SharedFrameRing.
+ * <p>
+ * Runs in its own process (see the manifest) so messages go through Binder like with the real service.
+ * Connect with ApiHelper.connect(context.getPackageName(), LocalMobileApiService.class.getName()).
+ */
+
+public class LocalMobileApiService extends Service {
+
+    private static final String TAG = "MobileApi/LocalService";
+    private static final int VARIANTS = 8;
+    private static final int STATUS_OK = 0;
+    private static final int STATUS_ERROR = 1;
+
+    private final ArrayList<Messenger> mClients = new ArrayList<>();
+    private final Map<Integer, Handler.Callback> mHandlers = makeHandlers();
+    private final Runnable mSendFrame = this::sendFrame;
+    private final Random mRandom = new Random();
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private Messenger mMessenger;
+    private byte[][] mFrames = null;
+    private SharedFrameRing mRing = null;
+    private Size mSize = null;
+    private double mFps = 30;
+    private double mJitterMs = 0;
+    private int mBurstFrames = 0;
+    private long mNextFrameMs = 0;
+    private long mNextBurstMs = 0;
+    private int mFrameIndex = 0;
+    private boolean mFrozen = false;
+    private double mDepth = 5;
+    private double mGain = 50;
+    private PatientInfo mPatientInfo = new PatientInfo("", "");
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mThread = new HandlerThread("MobileApi/LocalService", Process.THREAD_PRIORITY_DISPLAY);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper(), this::handleMessage);
+        mMessenger = new Messenger(mHandler);
+    }
+
+    @Override
+    public void onDestroy() {
+        mHandler.post(this::releaseRing);
+        mThread.quitSafely();
+        super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mMessenger.getBinder();
+    }
+
+    private boolean handleMessage(Message msg) {
+        Handler.Callback handler = mHandlers.get(msg.what);
+        if (null == handler) {
+            Log.w(TAG, "Unsupported message: " + msg.what);
+            reply(msg, STATUS_ERROR);
+            return false;
+        }
+        return handler.handleMessage(msg);
+    }
+
+    private Map<Integer, Handler.Callback> makeHandlers() {
+        HashMap<Integer, Handler.Callback> ret = new HashMap<>();
+        ret.put(MobileApi.MSG_REGISTER_CLIENT, msg -> {
+            if (null != msg.replyTo && !mClients.contains(msg.replyTo))
+                mClients.add(msg.replyTo);
+            return reply(msg, STATUS_OK);
+        });
+        ret.put(MobileApi.MSG_UNREGISTER_CLIENT, msg -> {
+            mClients.remove(msg.replyTo);
+            if (mClients.isEmpty())
+                stopFrames();
+            return reply(msg, STATUS_OK);
+        });
+        ret.put(MobileApi.MSG_CONFIGURE_IMAGE, msg -> {
+            configure(msg.getData());
+            return reply(msg, STATUS_OK);
+        });
+        ret.put(MobileApi.MSG_GET_DEPTH, msg -> send(msg.replyTo, MobileApi.MSG_RETURN_DEPTH, msg.arg1, depthBundle()));
+        ret.put(MobileApi.MSG_GET_GAIN, msg -> send(msg.replyTo, MobileApi.MSG_RETURN_GAIN, msg.arg1, gainBundle()));
+        ret.put(MobileApi.MSG_GET_FREEZE, msg -> send(msg.replyTo, MobileApi.MSG_RETURN_FREEZE, msg.arg1, freezeBundle()));
+        ret.put(MobileApi.MSG_GET_SCAN_AREA, msg -> send(msg.replyTo, MobileApi.MSG_RETURN_SCAN_AREA, msg.arg1, scanAreaBundle()));
+        ret.put(MobileApi.MSG_GET_PATIENT_INFO, msg -> {
+            Bundle data = new Bundle();
+            data.putParcelable(MobileApi.KEY_PATIENT_INFO, mPatientInfo);
+            return send(msg.replyTo, MobileApi.MSG_RETURN_PATIENT_INFO, msg.arg1, data);
+        });
+        ret.put(MobileApi.MSG_SET_PATIENT_INFO, msg -> {
+            Bundle data = msg.getData();
+            data.setClassLoader(PatientInfo.class.getClassLoader());
+            PatientInfo info = data.getParcelable(MobileApi.KEY_PATIENT_INFO);
+            if (null != info)
+                mPatientInfo = info;
+            return reply(msg, STATUS_OK);
+        });
+        ret.put(MobileApi.MSG_USER_FN, msg -> {
+            Bundle data = msg.getData();
+            return reply(msg, userFn(data.getString(MobileApi.KEY_USER_FN), data.getDouble(MobileApi.KEY_USER_PARAM)));
+        });
+        return ret;
+    }
+
+    /**
+     * Send MSG_RETURN_STATUS with the callback parameter of the request.
+     */
+    private boolean reply(Message request, int status) {
+        Message msg = Message.obtain(null, MobileApi.MSG_RETURN_STATUS);
+        msg.arg1 = request.arg1;
+        msg.arg2 = status;
+        return send(request.replyTo, msg);
+    }
+
+    private boolean send(Messenger client, int what, int param, Bundle data) {
+        Message msg = Message.obtain(null, what);
+        msg.arg1 = param;
+        msg.setData(data);
+        return send(client, msg);
+    }
+
+    private boolean send(Messenger client, Message msg) {
+        if (null == client)
+            return false;
+        try {
+            client.send(msg);
+            return true;
+        } catch (RemoteException e) {
+            Log.w(TAG, "Removing dead client");
+            mClients.remove(client);
+            return false;
+        }
+    }
+
+    private void broadcast(int what, Bundle data) {
+        for (Messenger client : new ArrayList<>(mClients))
+            send(client, what, 0, data);
+    }
+
+    private Bundle depthBundle() {
+        Bundle data = new Bundle();
+        data.putDouble(MobileApi.KEY_DEPTH_CM, mDepth);
+        return data;
+    }
+
+    private Bundle gainBundle() {
+        Bundle data = new Bundle();
+        data.putDouble(MobileApi.KEY_GAIN, mGain);
+        return data;
+    }
+
+    private Bundle freezeBundle() {
+        Bundle data = new Bundle();
+        data.putBoolean(MobileApi.KEY_FREEZE, mFrozen);
+        return data;
+    }
+
+    /**
+     * The B-image occupies the image minus a margin, like the real service.
+     */
+    private Bundle scanAreaBundle() {
+        Bundle data = new Bundle();
+        if (null != mSize) {
+            int dx = mSize.getWidth() / 10;
+            int dy = mSize.getHeight() / 20;
+            data.putParcelable(MobileApi.KEY_B_IMAGE_AREA, new Rect(dx, dy, mSize.getWidth() - dx, mSize.getHeight() - dy));
+        }
+        return data;
+    }
+
+    private int userFn(String fn, double param) {
+        if (null == fn)
+            return STATUS_ERROR;
+        if (fn.equals(getString(R.string.user_fn_SET_DEPTH))) {
+            setDepth(param);
+        } else if (fn.equals(getString(R.string.user_fn_DEPTH_INC))) {
+            setDepth(mDepth + 1);
+        } else if (fn.equals(getString(R.string.user_fn_DEPTH_DEC))) {
+            setDepth(mDepth - 1);
+        } else if (fn.equals(getString(R.string.user_fn_SET_GAIN))) {
+            setGain(param);
+        } else if (fn.equals(getString(R.string.user_fn_GAIN_INC))) {
+            setGain(mGain + 5);
+        } else if (fn.equals(getString(R.string.user_fn_GAIN_DEC))) {
+            setGain(mGain - 5);
+        } else if (fn.equals(getString(R.string.user_fn_TOGGLE_FREEZE))) {
+            mFrozen = !mFrozen;
+            broadcast(MobileApi.MSG_FREEZE_CHANGED, freezeBundle());
+            if (mFrozen)
+                stopFrames();
+            else
+                startFrames();
+        }
+        return STATUS_OK;
+    }
+
+    private void setDepth(double cm) {
+        mDepth = Math.max(1, cm);
+        broadcast(MobileApi.MSG_DEPTH_CHANGED, depthBundle());
+    }
+
+    private void setGain(double gain) {
+        mGain = Math.max(0, Math.min(100, gain));
+        broadcast(MobileApi.MSG_GAIN_CHANGED, gainBundle());
+    }
+
+    /**
+     * Apply a new image configuration: encode the synthetic frames once, then start sending them.
+     */
+    private void configure(Bundle config) {
+        Size size = config.getSize(MobileApi.KEY_IMAGE_SIZE);
+        if (null == size)
+            return;
+        String type = config.getString(MobileApi.KEY_COMPRESSION_TYPE, MobileApi.COMPRESSION_TYPE_JPEG);
+        int quality = config.getInt(MobileApi.KEY_COMPRESSION_QUALITY, 80);
+        mFps = Math.max(1, config.getDouble(ImageConfig.KEY_LOAD_FPS, 30));
+        mJitterMs = config.getDouble(ImageConfig.KEY_LOAD_JITTER_MS, 0);
+        mBurstFrames = config.getInt(ImageConfig.KEY_LOAD_BURST_FRAMES, 0);
+        if (!size.equals(mSize) || null == mFrames) {
+            mSize = size;
+            broadcast(MobileApi.MSG_SCAN_AREA_CHANGED, scanAreaBundle());
+        }
+        mFrames = encodeFrames(size.getWidth(), size.getHeight(), type, quality);
+        releaseRing();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+            try {
+                mRing = SharedFrameRing.fromConfig(config);
+            } catch (ErrnoException e) {
+                Log.w(TAG, "Cannot map the frame ring, sending frames in the bundle: " + e);
+            }
+        }
+        Log.v(TAG, "Configured " + size + " " + type + " q" + quality + " at " + mFps + " fps");
+        stopFrames();
+        if (!mFrozen)
+            startFrames();
+    }
+
+    private void releaseRing() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1 && null != mRing) {
+            mRing.close();
+            mRing = null;
+        }
+    }
+
+    private byte[][] encodeFrames(int width, int height, String type, int quality) {
+        byte[][] frames = new byte[VARIANTS][];
+        int[] pixels = new int[width * height];
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        for (int v = 0; v < VARIANTS; ++v) {
+            for (int y = 0; y < height; ++y) {
+                int base = 255 - 200 * y / height;
+                for (int x = 0; x < width; ++x) {
+                    int value = Math.max(0, base - mRandom.nextInt(128));
+                    pixels[y * width + x] = 0xff000000 | (value << 16) | (value << 8) | value;
+                }
+            }
+            bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+            frames[v] = encode(bitmap, type, quality);
+        }
+        bitmap.recycle();
+        return frames;
+    }
+
+    private static byte[] encode(Bitmap bitmap, String type, int quality) {
+        if (ImageConfig.COMPRESSION_TYPE_RAW.equals(type)) {
+            ByteBuffer buffer = ByteBuffer.allocate(bitmap.getByteCount());
+            bitmap.copyPixelsToBuffer(buffer);
+            return buffer.array();
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Bitmap.CompressFormat format = MobileApi.COMPRESSION_TYPE_PNG.equals(type) ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG;
+        bitmap.compress(format, quality, out);
+        return out.toByteArray();
+    }
+
+    private void startFrames() {
+        if (null == mFrames || mClients.isEmpty())
+            return;
+        mNextFrameMs = SystemClock.uptimeMillis();
+        mNextBurstMs = mNextFrameMs + 1000;
+        mHandler.post(mSendFrame);
+    }
+
+    private void stopFrames() {
+        mHandler.removeCallbacks(mSendFrame);
+    }
+
+    /**
+     * Send one frame (or a burst), then schedule the next one with the configured rate and jitter.
+     */
+    private void sendFrame() {
+        long now = SystemClock.uptimeMillis();
+        int count = 1;
+        if (mBurstFrames > 0 && now >= mNextBurstMs) {
+            count += mBurstFrames;
+            mNextBurstMs = now + 1000;
+        }
+        for (int i = 0; i < count; ++i)
+            broadcast(MobileApi.MSG_NEW_PROCESSED_IMAGE, frameBundle());
+        mNextFrameMs += (long) (1000 / mFps);
+        long jitter = mJitterMs > 0 ? (long) ((mRandom.nextDouble() * 2 - 1) * mJitterMs) : 0;
+        if (mNextFrameMs < now - 1000)
+            mNextFrameMs = now; // too late, do not try to catch up
+        mHandler.postAtTime(mSendFrame, Math.max(now, mNextFrameMs + jitter));
+    }
+
+    private Bundle frameBundle() {
+        byte[] data = mFrames[mFrameIndex++ % VARIANTS];
+        ProcessedImageInfo info = new ProcessedImageInfo();
+        info.width = mSize.getWidth();
+        info.height = mSize.getHeight();
+        info.bitsPerPixel = 32;
+        info.imageSize = data.length;
+        info.tm = SystemClock.elapsedRealtimeNanos();
+        Bundle bundle = new Bundle();
+        bundle.putParcelable(MobileApi.KEY_IMAGE_INFO, info);
+        bundle.putParcelableArrayList(MobileApi.KEY_POS_INFO, new ArrayList<PosInfo>());
+        boolean shared = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1 && null != mRing && mRing.write(data, bundle);
+        if (!shared)
+            bundle.putByteArray(MobileApi.KEY_IMAGE_DATA, data);
+        return bundle;
+    }
+}
@@ -0,0 +1,83 @@
+package me.clarius.sdk.mobileapi.example;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Single channel 8-bit image, for consumers analysing the B-image rather than displaying it.
+ * <p>
+ * B-images are grayscale, so one byte per pixel holds the same information as the ARGB_8888 bitmap in a quarter
+ * of the memory, and can be processed with plain array loops. Pixel (x, y) is at getData()[y * getStride() + x].
+ * <p>
+ * Frames are recycled by a LumaPool and reference counted like pooled bitmaps: consumers keeping a frame after the
+ * listener callback must call retain() and later release().
+ */
+
+public class LumaFrame {
+
+    private final LumaPool mPool;
+    private final AtomicInteger mRefs = new AtomicInteger();
+    private byte[] mData;
+    private int mWidth = 0;
+    private int mHeight = 0;
+
+    LumaFrame(LumaPool pool, int capacity) {
+        mPool = pool;
+        mData = new byte[capacity];
+    }
+
+    /**
+     * Prepare the frame for a new image, reallocating the data only if too small.
+     */
+    void reset(int width, int height) {
+        if (mData.length < width * height)
+            mData = new byte[width * height];
+        mWidth = width;
+        mHeight = height;
+        mRefs.set(1);
+    }
+
+    /**
+     * The pixels, row after row, may be larger than getStride() * getHeight().
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * The number of bytes between the start of two rows.
+     */
+    public int getStride() {
+        return mWidth;
+    }
+
+    int getCapacity() {
+        return mData.length;
+    }
+
+    /**
+     * Add one reference to the frame.
+     */
+    public void retain() {
+        if (mRefs.getAndIncrement() <= 0)
+            throw new IllegalStateException("frame not in use");
+    }
+
+    /**
+     * Remove one reference to the frame, it returns to its pool when the last reference is removed.
+     */
+    public void release() {
+        int refs = mRefs.decrementAndGet();
+        if (refs < 0)
+            throw new IllegalStateException("frame not in use");
+        if (0 == refs)
+            mPool.recycle(this);
+    }
+}
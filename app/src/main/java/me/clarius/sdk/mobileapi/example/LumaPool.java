@@ -0,0 +1,65 @@
+package me.clarius.sdk.mobileapi.example;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Recycle luma frames to avoid one allocation per frame, see LumaFrame.
+ * <p>
+ * Frames are reused for any size fitting in their data, so a smaller image size does not allocate.
+ */
+
+public class LumaPool {
+
+    private final int mMaxFree;
+    private final ArrayDeque<LumaFrame> mFree = new ArrayDeque<>();
+
+    /**
+     * Construct an empty pool.
+     *
+     * @param maxFree The maximum number of unused frames kept in the pool.
+     */
+    public LumaPool(int maxFree) {
+        mMaxFree = maxFree;
+    }
+
+    /**
+     * Obtain a frame with the given size, reused from the pool if possible.
+     * <p>
+     * The returned frame has one reference owned by the caller.
+     */
+    public LumaFrame acquire(int width, int height) {
+        LumaFrame frame = null;
+        synchronized (this) {
+            Iterator<LumaFrame> it = mFree.iterator();
+            while (it.hasNext()) {
+                LumaFrame free = it.next();
+                if (free.getCapacity() >= width * height) {
+                    it.remove();
+                    frame = free;
+                    break;
+                }
+            }
+            // drop a frame too small to be reused, the new one replaces it
+            if (null == frame && mFree.size() >= mMaxFree)
+                mFree.pollFirst();
+        }
+        if (null == frame)
+            frame = new LumaFrame(this, width * height);
+        frame.reset(width, height);
+        return frame;
+    }
+
+    synchronized void recycle(LumaFrame frame) {
+        if (mFree.size() < mMaxFree)
+            mFree.addLast(frame);
+    }
+
+    /**
+     * Drop unused frames down to the given number.
+     */
+    public synchronized void trim(int maxFree) {
+        while (mFree.size() > maxFree)
+            mFree.pollFirst();
+    }
+}
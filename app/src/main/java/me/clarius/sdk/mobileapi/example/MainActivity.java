@@ -4,15 +4,19 @@ import static me.clarius.sdk.mobileapi.example.BuildConfig.CLARIUS_PACKAGE_NAME;
 import static me.clarius.sdk.mobileapi.example.BuildConfig.CLARIUS_SERVICE_NAME;
 
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.os.RemoteException;
 import android.text.InputType;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.widget.EditText;
+import android.widget.Toast;
 
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.lifecycle.ViewModelProvider;
+import androidx.preference.PreferenceManager;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -21,6 +25,11 @@ import java.util.function.Consumer;
 public class MainActivity extends AppCompatActivity {
 
     private ApiHelper api;
+    private Listener listener;
+    private ProcessingPipeline processing;
+    private RoiStatsEngine roiStats;
+    private CommandScheduler commands;
+    private static final double PROCESSING_CONTRAST = 1.2;
     private final Map<Integer, MenuHandler> menuHandlers = makeMenuHandlers();
 
     private void askText(String title, String hint, Consumer<String> consumer) {
@@ -36,23 +45,11 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void sendPatientId() {
-        askText("Patient ID", "Patient ID", text -> {
-            try {
-                api.sendPatientInfo(text, null);
-            } catch (RemoteException e) {
-                throw new RuntimeException(e);
-            }
-        });
+        askText("Patient ID", "Patient ID", text -> commands.sendPatientInfo(text, null));
     }
 
     private void sendPatientName() {
-        askText("Patient Name", "Last, First", text -> {
-            try {
-                api.sendPatientInfo(null, text);
-            } catch (RemoteException e) {
-                throw new RuntimeException(e);
-            }
-        });
+        askText("Patient Name", "Last, First", text -> commands.sendPatientInfo(null, text));
     }
 
     private void sendUserFn(MenuItem item) {
@@ -69,26 +66,49 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void sendUserFn(String title, double value) {
-        try {
-            api.userFn(title, value);
-        } catch (RemoteException e) {
-            e.printStackTrace();
-        }
+        commands.userFn(title, value);
     }
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.main_activity);
-        Utils.printClariusPackages(this);
-        api = new ApiHelper(this);
-        api.setListener(new Listener(this, api));
+        StartupTrace.mark(StartupTrace.ACTIVITY_CREATED);
+        api = ((MobileApiApplication) getApplication()).getApi();
+        listener = new Listener(this, api);
+        api.setListener(listener);
+        processing = new ProcessingPipeline()
+            .addStage(getString(R.string.processing_stage_despeckle), new DespeckleStage())
+            .addStage(getString(R.string.processing_stage_contrast), new ContrastStage(PROCESSING_CONTRAST));
+        roiStats = new RoiStatsEngine(getResources().getInteger(R.integer.roi_stats_publish_rate));
+        roiStats.setRoiGrid(getResources().getInteger(R.integer.roi_grid_columns), getResources().getInteger(R.integer.roi_grid_rows));
+        api.addMessageObserver(roiStats);
+        long commandIntervalMs = getResources().getInteger(R.integer.command_min_interval_ms);
+        commands = new CommandScheduler(api, getMainLooper())
+            .setCoalescing(getString(R.string.user_fn_SET_DEPTH), commandIntervalMs)
+            .setCoalescing(getString(R.string.user_fn_SET_GAIN), commandIntervalMs);
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        // the application already connects when the process starts, connect again when the app is relaunched
+        if (null == savedInstanceState && Utils.getConnectOnStartup(this, prefs) && !api.isBindingActive())
+            connect(CLARIUS_PACKAGE_NAME, CLARIUS_SERVICE_NAME);
+        else
+            updateLumaListeners(prefs);
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        api.disconnect();
+        // the connection belongs to the application, keep it when the activity is only recreated
+        if (isFinishing())
+            api.disconnect();
+        api.setListener(null);
+        listener.release();
+        api.removeLumaListener(processing);
+        api.removeLumaListener(roiStats);
+        api.removeMessageObserver(roiStats);
+        commands.clear();
+        processing.release();
+        roiStats.release();
     }
 
     @Override
@@ -125,8 +145,12 @@ public class MainActivity extends AppCompatActivity {
 
     private Map<Integer, MenuHandler> makeMenuHandlers() {
         HashMap<Integer, MenuHandler> ret = new HashMap<>();
-        ret.put(R.id.action_connect, () -> api.connect(CLARIUS_PACKAGE_NAME, CLARIUS_SERVICE_NAME));
-        ret.put(R.id.action_disconnect, () -> api.disconnect());
+        ret.put(R.id.action_connect, () -> connect(CLARIUS_PACKAGE_NAME, CLARIUS_SERVICE_NAME));
+        ret.put(R.id.action_connect_local, () -> connect(getPackageName(), LocalMobileApiService.class.getName()));
+        ret.put(R.id.action_disconnect, () -> {
+            commands.clear();
+            api.disconnect();
+        });
         ret.put(R.id.action_ask_scan_area, () -> api.askScanArea());
         ret.put(R.id.action_ask_probe_info, () -> api.askProbeInfo());
         ret.put(R.id.action_ask_freeze, () -> api.askFreeze());
@@ -136,14 +160,78 @@ public class MainActivity extends AppCompatActivity {
         ret.put(R.id.action_send_patient_id, this::sendPatientId);
         ret.put(R.id.action_send_patient_name, this::sendPatientName);
         ret.put(R.id.action_settings, this::showSettings);
+        ret.put(R.id.action_show_stats, this::showStats);
+        ret.put(R.id.action_cine_back, () -> listener.scrubCine(-1));
+        ret.put(R.id.action_cine_forward, () -> listener.scrubCine(+1));
+        ret.put(R.id.action_record_session, () -> listener.toggleRecording());
+        ret.put(R.id.action_replay_session, () -> listener.toggleReplay(SessionReplay.Pacing.ORIGINAL));
+        ret.put(R.id.action_replay_session_fast, () -> listener.toggleReplay(SessionReplay.Pacing.AS_FAST_AS_POSSIBLE));
+        ret.put(R.id.action_decode_benchmark, this::runDecodeBenchmark);
+        ret.put(R.id.action_load_sweep, this::runLoadSweep);
         ret.put(R.id.action_start_clarius_app, () -> Utils.startClariusApp(this));
         return ret;
     }
 
+    private void connect(String packageName, String serviceName) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        Utils.configureApi(this, prefs, api);
+        updateLumaListeners(prefs);
+        api.connect(packageName, serviceName);
+    }
+
+    private void updateLumaListeners(SharedPreferences prefs) {
+        if (prefs.getBoolean("luma_processing", getResources().getBoolean(R.bool.default_luma_processing)))
+            api.addLumaListener(processing, Runnable::run);
+        else
+            api.removeLumaListener(processing);
+        if (prefs.getBoolean("roi_stats", getResources().getBoolean(R.bool.default_roi_stats)))
+            api.addLumaListener(roiStats, Runnable::run);
+        else
+            api.removeLumaListener(roiStats);
+    }
+
     private void showSettings() {
         startActivity(new Intent(this, SettingsActivity.class));
     }
 
+    private void showStats() {
+        FrameRenderer renderer = new ViewModelProvider(this).get(ImageViewModel.class).getRenderer();
+        new AlertDialog.Builder(this)
+            .setTitle(R.string.menu_action_show_stats)
+            .setMessage(api.getStats() + "\n" + renderer + "\n\n" + api.getMetrics() + "\n\n" + processing + "\n\n" + roiStats + "\n\n" + api.getState() + "\n\n" + commands + "\n\n" + api.getReconnectSupervisor() + "\n\n" + StartupTrace.describe())
+            .setPositiveButton(R.string.dialog_stats_close, null)
+            .setNeutralButton(R.string.dialog_stats_reset, (dialog, whichButton) -> {
+                api.getStats().reset();
+                api.getMetrics().reset();
+                renderer.resetCounters();
+                processing.resetCounters();
+                roiStats.resetCounters();
+                commands.resetCounters();
+            })
+            .show();
+    }
+
+    private void runDecodeBenchmark() {
+        Toast.makeText(this, R.string.decode_benchmark_running, Toast.LENGTH_SHORT).show();
+        new Thread(() -> {
+            String report = new DecodeBenchmark().run();
+            runOnUiThread(() -> new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_action_decode_benchmark)
+                .setMessage(report)
+                .setPositiveButton(R.string.dialog_stats_close, null)
+                .show());
+        }, "MobileApi/Benchmark").start();
+    }
+
+    private void runLoadSweep() {
+        Toast.makeText(this, R.string.load_sweep_running, Toast.LENGTH_SHORT).show();
+        listener.runLoadSweep(report -> new AlertDialog.Builder(this)
+            .setTitle(R.string.menu_action_load_sweep)
+            .setMessage(report)
+            .setPositiveButton(R.string.dialog_stats_close, null)
+            .show());
+    }
+
     private interface MenuHandler {
         void run() throws RemoteException;
     }
@@ -0,0 +1,90 @@
+package me.clarius.sdk.mobileapi.example;
+
+import static me.clarius.sdk.mobileapi.example.BuildConfig.CLARIUS_PACKAGE_NAME;
+import static me.clarius.sdk.mobileapi.example.BuildConfig.CLARIUS_SERVICE_NAME;
+
+import android.app.Application;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.Process;
+
+import androidx.preference.PreferenceManager;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Start the work needed for the first image as soon as the process starts, before the activity is created.
+ * <p>
+ * The ApiHelper is owned by the application so the connection can start here and outlive the activity.
+ * In parallel with the bind, which only needs the main thread to send the request:
+ * - the Clarius packages are listed on a background thread, since enumerating all installed packages takes a while;
+ * - the pools and decoders are prewarmed for the image configuration from the preferences on another thread.
+ * <p>
+ * The phases are recorded in the StartupTrace.
+ */
+
+public class MobileApiApplication extends Application {
+
+    private ApiHelper api;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        // the load generator service runs in its own process, which needs none of this
+        if (!isMainProcess())
+            return;
+        StartupTrace.mark(StartupTrace.APPLICATION_CREATED);
+        api = new ApiHelper(this);
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        ImageConfig config = Utils.createImageConfig(this, prefs);
+        new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            Utils.printClariusPackages(this);
+            StartupTrace.mark(StartupTrace.PACKAGES_LISTED);
+        }, "MobileApi/Discovery").start();
+        new Thread(() -> {
+            api.prewarm(config);
+            StartupTrace.mark(StartupTrace.PREWARMED);
+        }, "MobileApi/Prewarm").start();
+        if (Utils.getConnectOnStartup(this, prefs)) {
+            Utils.configureApi(this, prefs, api);
+            api.connect(CLARIUS_PACKAGE_NAME, CLARIUS_SERVICE_NAME);
+        }
+    }
+
+    /**
+     * Whether this is the default process of the app, found without any IPC to keep the cold start short.
+     */
+    private boolean isMainProcess() {
+        String name = Build.VERSION.SDK_INT >= Build.VERSION_CODES.P ? Application.getProcessName() : readProcessName();
+        return null == name || getPackageName().equals(name);
+    }
+
+    /**
+     * The name of this process from /proc, or null if it cannot be read.
+     */
+    private static String readProcessName() {
+        byte[] buffer = new byte[256];
+        try (FileInputStream in = new FileInputStream("/proc/self/cmdline")) {
+            int length = in.read(buffer);
+            if (length <= 0)
+                return null;
+            // the arguments are separated by null characters
+            int end = 0;
+            while (end < length && 0 != buffer[end])
+                ++end;
+            return new String(buffer, 0, end, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The helper shared by the activities, possibly already connecting.
+     */
+    public ApiHelper getApi() {
+        return api;
+    }
+}
@@ -0,0 +1,73 @@
+package me.clarius.sdk.mobileapi.example;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Decoded overlay layers keyed by a hash of their image data, for images configured with separate overlays.
+ * <p>
+ * The overlay layer changes far less often than the B-image, and often alternates between a few states (for example
+ * blinking measurement markers): an overlay is only decoded the first time its content is seen, then reused.
+ * Cached bitmaps are not pooled: they are never modified, and can be kept by the renderer after being evicted.
+ * <p>
+ * Only used on the dispatch thread.
+ */
+
+public class OverlayCache {
+
+    private static final int MAX_ENTRIES = 4;
+
+    private final CRC32 mCrc = new CRC32();
+    private final LinkedHashMap<Long, Bitmap> mEntries = new LinkedHashMap<Long, Bitmap>(8, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Bitmap> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private boolean mDecoded = false;
+
+    /**
+     * Get the decoded overlay for this image data, decoding it only if not cached.
+     *
+     * @param length The number of valid bytes in data.
+     * @return The overlay, or null if it cannot be decoded.
+     */
+    public Bitmap get(byte[] data, int length, int width, int height) {
+        mCrc.reset();
+        mCrc.update(data, 0, length);
+        long key = (mCrc.getValue() << 32) ^ length;
+        Bitmap bitmap = mEntries.get(key);
+        mDecoded = null == bitmap;
+        if (mDecoded) {
+            bitmap = decode(data, length, width, height);
+            if (null != bitmap)
+                mEntries.put(key, bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Whether the last call to get() had to decode the overlay.
+     */
+    public boolean wasDecoded() {
+        return mDecoded;
+    }
+
+    public void clear() {
+        mEntries.clear();
+    }
+
+    private static Bitmap decode(byte[] data, int length, int width, int height) {
+        if (FrameFormat.RAW == FrameFormat.detect(data, length, width, height)) {
+            Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(data, 0, length));
+            return bitmap;
+        }
+        return BitmapFactory.decodeByteArray(data, 0, length);
+    }
+}
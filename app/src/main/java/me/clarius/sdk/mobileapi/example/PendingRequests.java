@@ -0,0 +1,187 @@
+package me.clarius.sdk.mobileapi.example;
+
+import android.os.Message;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+import me.clarius.sdk.mobileapi.MobileApi;
+
+/**
+ * Requests sent to the service waiting for their reply, see ApiHelper.
+ * <p>
+ * Each request gets a unique callback parameter in Message.arg1, which the service copies in MSG_RETURN_STATUS.
+ * Replies carrying data (MSG_RETURN_DEPTH, ...) are matched by callback parameter too, or, for services not
+ * copying it in those replies, to the oldest request waiting for the same reply: the service answers requests of
+ * one kind in order, so many requests can be in flight at once.
+ * <p>
+ * A request fails when the service returns an error status for it, on timeout, or when disconnecting.
+ * Futures are completed on the thread handling the replies: use the async variants of CompletableFuture to
+ * continue on another executor.
+ */
+
+public class PendingRequests {
+
+    /**
+     * First callback parameter, above the message codes used as callback parameters, see MSG_REGISTER_CLIENT.
+     */
+    private static final int FIRST_PARAM = 0x10000;
+
+    /**
+     * Failure reported by the service with MSG_RETURN_STATUS.
+     */
+    public static class StatusException extends Exception {
+        private final int mStatus;
+
+        StatusException(int what, int status) {
+            super("Request " + what + " failed with status " + status);
+            mStatus = status;
+        }
+
+        public int getStatus() {
+            return mStatus;
+        }
+    }
+
+    private static class Pending<T> {
+        final int what;
+        final int replyWhat;
+        final Function<Message, T> parser;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+
+        Pending(int what, int replyWhat, Function<Message, T> parser) {
+            this.what = what;
+            this.replyWhat = replyWhat;
+            this.parser = parser;
+        }
+
+        void complete(Message reply) {
+            try {
+                future.complete(parser.apply(reply));
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Requests by callback parameter, in sending order, guarded by this object.
+     */
+    private final LinkedHashMap<Integer, Pending<?>> mPending = new LinkedHashMap<>();
+    private int mNextParam = FIRST_PARAM;
+
+    /**
+     * Track a new request, to call before sending it.
+     *
+     * @param msg The request, its callback parameter is set.
+     * @param replyWhat The reply completing the request, MSG_RETURN_STATUS for requests only returning a status.
+     * @param parser Extract the result from the reply, called on the thread handling the replies.
+     */
+    public synchronized <T> CompletableFuture<T> add(Message msg, int replyWhat, Function<Message, T> parser) {
+        int param = mNextParam;
+        mNextParam = Integer.MAX_VALUE == param ? FIRST_PARAM : param + 1;
+        msg.arg1 = param;
+        Pending<T> pending = new Pending<>(msg.what, replyWhat, parser);
+        mPending.put(param, pending);
+        return pending.future;
+    }
+
+    /**
+     * Complete the request matching a reply carrying data.
+     *
+     * @return False if no request was waiting for it, for example a request sent by another client.
+     */
+    public boolean onReply(Message reply) {
+        Pending<?> pending;
+        synchronized (this) {
+            pending = mPending.get(reply.arg1);
+            if (null != pending && pending.replyWhat == reply.what) {
+                mPending.remove(reply.arg1);
+            } else {
+                pending = removeOldest(reply.what);
+            }
+        }
+        if (null == pending)
+            return false;
+        pending.complete(reply);
+        return true;
+    }
+
+    /**
+     * Complete the request matching a MSG_RETURN_STATUS: with its status if it only waits for it,
+     * or exceptionally if the status is an error.
+     */
+    public void onStatus(Message reply, int status) {
+        Pending<?> pending;
+        synchronized (this) {
+            pending = mPending.get(reply.arg1);
+            if (null == pending || (0 == status && MobileApi.MSG_RETURN_STATUS != pending.replyWhat))
+                return;
+            mPending.remove(reply.arg1);
+        }
+        if (0 != status)
+            pending.future.completeExceptionally(new StatusException(pending.what, status));
+        else
+            pending.complete(reply);
+    }
+
+    private Pending<?> removeOldest(int replyWhat) {
+        Iterator<Pending<?>> it = mPending.values().iterator();
+        while (it.hasNext()) {
+            Pending<?> pending = it.next();
+            if (pending.replyWhat == replyWhat) {
+                it.remove();
+                return pending;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Fail the request if still waiting.
+     *
+     * @param param The callback parameter of the request.
+     */
+    public void expire(int param) {
+        Pending<?> pending;
+        synchronized (this) {
+            pending = mPending.remove(param);
+        }
+        if (null != pending)
+            pending.future.completeExceptionally(new TimeoutException("No reply to request " + pending.what));
+    }
+
+    /**
+     * Forget a request that could not be sent, failing it with the given error.
+     *
+     * @param param The callback parameter of the request.
+     */
+    public void cancel(int param, Throwable error) {
+        Pending<?> pending;
+        synchronized (this) {
+            pending = mPending.remove(param);
+        }
+        if (null != pending)
+            pending.future.completeExceptionally(error);
+    }
+
+    /**
+     * Fail all the requests, for example when disconnecting.
+     */
+    public void failAll(Throwable error) {
+        Pending<?>[] pending;
+        synchronized (this) {
+            pending = mPending.values().toArray(new Pending<?>[0]);
+            mPending.clear();
+        }
+        for (Pending<?> request : pending)
+            request.future.completeExceptionally(error);
+    }
+
+    public synchronized int size() {
+        return mPending.size();
+    }
+}
@@ -0,0 +1,223 @@
+package me.clarius.sdk.mobileapi.example;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import me.clarius.sdk.mobileapi.PosInfo;
+import me.clarius.sdk.mobileapi.ProcessedImageInfo;
+
+/**
+ * Process the luma frames through a chain of stages off the image path, see ProcessingStage.
+ * <p>
+ * Receive the frames with ApiHelper.addLumaListener(). Each stage runs on its own thread, so successive frames go
+ * through different stages at the same time while staying in order, and large frames are split in tiles of rows
+ * processed in parallel on a shared fork-join pool. The output is called on the thread of the last stage, in order.
+ * Without an output, as in MainActivity which only shows the stage latencies, processed frames are released.
+ * <p>
+ * Processing never slows down the display: frames arriving while too many are in flight are dropped on entry,
+ * and the worker threads run at a lower priority than the decode and render threads.
+ */
+
+public class ProcessingPipeline implements ApiHelper.LumaListener {
+
+    private static final String TAG = "MobileApi/Processing";
+
+    /**
+     * Maximum number of frames between the entry and the output.
+     */
+    private static final int MAX_IN_FLIGHT = 3;
+
+    /**
+     * Frames with fewer rows are processed without splitting them.
+     */
+    private static final int TILE_ROWS = 64;
+
+    /**
+     * Receive the processed frames, in order.
+     */
+    public interface Output {
+        /**
+         * The frame is recycled after this call returns, call LumaFrame.retain() to keep it longer.
+         */
+        void onProcessed(LumaFrame frame, ProcessedImageInfo imageInfo, ArrayList<PosInfo> posInfo);
+    }
+
+    private static class Stage {
+        final String name;
+        final ProcessingStage impl;
+        final ExecutorService executor;
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        Stage(String name, ProcessingStage impl) {
+            this.name = name;
+            this.impl = impl;
+            this.executor = Executors.newSingleThreadExecutor(r -> new Thread(r, "MobileApi/Stage-" + name));
+        }
+    }
+
+    private final List<Stage> mStages = new ArrayList<>();
+    private final ForkJoinPool mTilePool = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+    private final LumaPool mPool = new LumaPool(2 * MAX_IN_FLIGHT);
+    private final AtomicInteger mInFlight = new AtomicInteger();
+    private final AtomicLong mProcessedFrames = new AtomicLong();
+    private final AtomicLong mDroppedFrames = new AtomicLong();
+    private volatile Output mOutput = null;
+
+    /**
+     * Append a stage, before the first frame is received.
+     *
+     * @param name The stage name, for the thread and the statistics.
+     */
+    public ProcessingPipeline addStage(String name, ProcessingStage stage) {
+        mStages.add(new Stage(name, stage));
+        return this;
+    }
+
+    /**
+     * Receive the processed frames, or null to only measure the stages.
+     */
+    public ProcessingPipeline setOutput(Output output) {
+        mOutput = output;
+        return this;
+    }
+
+    /**
+     * Enter a new frame, called by the ApiHelper: returns quickly, the processing happens on the stage threads.
+     */
+    @Override
+    public void onNewLumaFrame(LumaFrame frame, ProcessedImageInfo imageInfo, ArrayList<PosInfo> posInfo) {
+        if (mStages.isEmpty() || mInFlight.incrementAndGet() > MAX_IN_FLIGHT) {
+            mInFlight.decrementAndGet();
+            mDroppedFrames.incrementAndGet();
+            return;
+        }
+        frame.retain();
+        submit(0, frame, imageInfo, posInfo);
+    }
+
+    /**
+     * Queue the frame on the thread of a stage, taking over one reference.
+     */
+    private void submit(int index, LumaFrame frame, ProcessedImageInfo imageInfo, ArrayList<PosInfo> posInfo) {
+        try {
+            mStages.get(index).executor.execute(() -> process(index, frame, imageInfo, posInfo));
+        } catch (RejectedExecutionException e) {
+            // released
+            frame.release();
+            mInFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * Run one stage on its thread and hand the result to the next stage or to the output.
+     */
+    private void process(int index, LumaFrame src, ProcessedImageInfo imageInfo, ArrayList<PosInfo> posInfo) {
+        Stage stage = mStages.get(index);
+        long start = System.nanoTime();
+        LumaFrame dst = mPool.acquire(src.getWidth(), src.getHeight());
+        try {
+            if (src.getHeight() <= TILE_ROWS)
+                stage.impl.processRows(src, dst, 0, src.getHeight());
+            else
+                mTilePool.invoke(new Tile(stage.impl, src, dst, 0, src.getHeight()));
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Stage " + stage.name + " failed", e);
+            dst.release();
+            src.release();
+            mInFlight.decrementAndGet();
+            return;
+        }
+        src.release();
+        stage.latency.record(System.nanoTime() - start);
+        if (index + 1 < mStages.size()) {
+            submit(index + 1, dst, imageInfo, posInfo);
+            return;
+        }
+        try {
+            Output output = mOutput;
+            if (null != output)
+                output.onProcessed(dst, imageInfo, posInfo);
+        } finally {
+            dst.release();
+            mProcessedFrames.incrementAndGet();
+            mInFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * Rows of a frame processed by one stage, split in halves until small enough.
+     */
+    private static class Tile extends RecursiveAction {
+        private final ProcessingStage mStage;
+        private final LumaFrame mSrc;
+        private final LumaFrame mDst;
+        private final int mTop;
+        private final int mBottom;
+
+        Tile(ProcessingStage stage, LumaFrame src, LumaFrame dst, int top, int bottom) {
+            mStage = stage;
+            mSrc = src;
+            mDst = dst;
+            mTop = top;
+            mBottom = bottom;
+        }
+
+        @Override
+        protected void compute() {
+            if (mBottom - mTop <= TILE_ROWS) {
+                mStage.processRows(mSrc, mDst, mTop, mBottom);
+                return;
+            }
+            int middle = (mTop + mBottom) >>> 1;
+            invokeAll(new Tile(mStage, mSrc, mDst, mTop, middle), new Tile(mStage, mSrc, mDst, middle, mBottom));
+        }
+    }
+
+    public long getProcessedFrames() {
+        return mProcessedFrames.get();
+    }
+
+    /**
+     * Frames dropped on entry because too many were in flight.
+     */
+    public long getDroppedFrames() {
+        return mDroppedFrames.get();
+    }
+
+    public void resetCounters() {
+        mProcessedFrames.set(0);
+        mDroppedFrames.set(0);
+        for (Stage stage : mStages)
+            stage.latency.reset();
+    }
+
+    /**
+     * Stop the worker threads, frames in flight are abandoned.
+     */
+    public void release() {
+        for (Stage stage : mStages)
+            stage.executor.shutdownNow();
+        mTilePool.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format(Locale.US, "Processed frames: %d, dropped: %d", getProcessedFrames(), getDroppedFrames()));
+        for (Stage stage : mStages) {
+            builder.append(String.format(Locale.US, "\n%s: %.2f ms mean, %.2f ms p99, %.2f ms max", stage.name,
+                stage.latency.getMeanMs(), stage.latency.getPercentileMs(99), stage.latency.getMaxMs()));
+        }
+        return builder.toString();
+    }
+}
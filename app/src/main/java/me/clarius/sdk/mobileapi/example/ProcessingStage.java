@@ -0,0 +1,16 @@
+package me.clarius.sdk.mobileapi.example;
+
+/**
+ * One step of a ProcessingPipeline, for example a filter, transforming a luma frame into another.
+ * <p>
+ * Large frames are split in tiles of rows processed in parallel: implementations must only write the given rows of
+ * the destination, can read the whole source, and must not keep state between calls.
+ */
+
+public interface ProcessingStage {
+
+    /**
+     * Process the rows [top, bottom) of the source into the destination, which has the same size.
+     */
+    void processRows(LumaFrame src, LumaFrame dst, int top, int bottom);
+}
@@ -0,0 +1,131 @@
+package me.clarius.sdk.mobileapi.example;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.Locale;
+
+/**
+ * Schedule the reconnection attempts after losing the service, and measure how long resuming takes.
+ * <p>
+ * Attempts are spaced with a bounded exponential backoff until the service is registered again or the client
+ * disconnects. The time from the registration to the first frame and the whole outage are recorded, see ApiHelper.
+ * <p>
+ * Attempts run on the main thread, the other methods can be called from any thread.
+ */
+
+public class ReconnectSupervisor {
+
+    private static final long INITIAL_DELAY_MS = 100;
+    private static final long MAX_DELAY_MS = 5000;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mAttemptRunnable = this::attempt;
+    private final Runnable mAttempt;
+    private final LatencyHistogram mTimeToFirstFrame = new LatencyHistogram();
+    private final LatencyHistogram mOutage = new LatencyHistogram();
+    private boolean mActive = false;
+    private long mNextDelayMs = INITIAL_DELAY_MS;
+    private int mAttempts = 0;
+    private long mLostNanos = 0;
+    private long mReconnectedNanos = 0;
+    private long mReconnections = 0;
+    private volatile boolean mAwaitingFrame = false;
+
+    /**
+     * @param attempt Try to bind to the service again, called on the main thread.
+     */
+    public ReconnectSupervisor(Runnable attempt) {
+        mAttempt = attempt;
+    }
+
+    /**
+     * Start the attempts after losing the service. Does nothing if already started.
+     */
+    public synchronized void onConnectionLost() {
+        if (mActive)
+            return;
+        mActive = true;
+        mAwaitingFrame = false;
+        mLostNanos = System.nanoTime();
+        mAttempts = 0;
+        mNextDelayMs = INITIAL_DELAY_MS;
+        mHandler.postDelayed(mAttemptRunnable, mNextDelayMs);
+    }
+
+    private void attempt() {
+        synchronized (this) {
+            if (!mActive)
+                return;
+            ++mAttempts;
+            mNextDelayMs = Math.min(2 * mNextDelayMs, MAX_DELAY_MS);
+            mHandler.postDelayed(mAttemptRunnable, mNextDelayMs);
+        }
+        mAttempt.run();
+    }
+
+    /**
+     * Stop the attempts once registered again, and wait for the first frame.
+     */
+    public synchronized void onReconnected() {
+        if (!mActive)
+            return;
+        mHandler.removeCallbacks(mAttemptRunnable);
+        mActive = false;
+        ++mReconnections;
+        mReconnectedNanos = System.nanoTime();
+        mAwaitingFrame = true;
+    }
+
+    /**
+     * Record the resume times on the first frame after reconnecting, called for each frame.
+     */
+    public void onFrame() {
+        if (!mAwaitingFrame)
+            return;
+        synchronized (this) {
+            if (!mAwaitingFrame)
+                return;
+            mAwaitingFrame = false;
+            long now = System.nanoTime();
+            mTimeToFirstFrame.record(now - mReconnectedNanos);
+            mOutage.record(now - mLostNanos);
+        }
+    }
+
+    /**
+     * Stop the attempts, for example when the client disconnects.
+     */
+    public synchronized void cancel() {
+        mHandler.removeCallbacks(mAttemptRunnable);
+        mActive = false;
+        mAwaitingFrame = false;
+    }
+
+    public synchronized boolean isActive() {
+        return mActive;
+    }
+
+    /**
+     * Time from the registration to the first frame after reconnecting.
+     */
+    public LatencyHistogram getTimeToFirstFrame() {
+        return mTimeToFirstFrame;
+    }
+
+    /**
+     * Time from losing the service to the first frame after reconnecting.
+     */
+    public LatencyHistogram getOutage() {
+        return mOutage;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "Reconnections: %d, attempts: %d%s\n"
+                + "Time to first frame: %.0f ms mean, %.0f ms max\n"
+                + "Outage: %.0f ms mean, %.0f ms max",
+            mReconnections, mAttempts, mActive ? " (reconnecting)" : "",
+            mTimeToFirstFrame.getMeanMs(), mTimeToFirstFrame.getMaxMs(), mOutage.getMeanMs(), mOutage.getMaxMs());
+    }
+}
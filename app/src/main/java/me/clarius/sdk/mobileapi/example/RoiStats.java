@@ -0,0 +1,117 @@
+package me.clarius.sdk.mobileapi.example;
+
+import android.graphics.Rect;
+
+import java.util.Arrays;
+
+/**
+ * Intensity statistics of one region of interest in a luma frame, see RoiStatsEngine.
+ * <p>
+ * Only the histogram is accumulated from the pixels, the mean, variance and percentiles are derived from its 256 bins,
+ * so their cost does not depend on the region size.
+ */
+
+public class RoiStats {
+
+    private final Rect mRoi;
+    private final int[] mHistogram = new int[256];
+    private long mCount = 0;
+    private double mMean = 0;
+    private double mVariance = 0;
+
+    RoiStats(Rect roi) {
+        mRoi = new Rect(roi);
+    }
+
+    /**
+     * The region, in scan area coordinates: must not be modified.
+     */
+    public Rect getRoi() {
+        return mRoi;
+    }
+
+    /**
+     * The number of pixels of the region in the frame, 0 if outside.
+     */
+    public long getCount() {
+        return mCount;
+    }
+
+    public double getMean() {
+        return mMean;
+    }
+
+    public double getVariance() {
+        return mVariance;
+    }
+
+    public double getStandardDeviation() {
+        return Math.sqrt(mVariance);
+    }
+
+    /**
+     * The number of pixels for each luma value: must not be modified.
+     */
+    public int[] getHistogram() {
+        return mHistogram;
+    }
+
+    /**
+     * The smallest luma value with at least the given percentage of the pixels at or below it, 0 if empty.
+     *
+     * @param percentile Between 0 and 100.
+     */
+    public int getPercentile(double percentile) {
+        if (0 == mCount)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * mCount));
+        long seen = 0;
+        for (int value = 0; value < mHistogram.length; ++value) {
+            seen += mHistogram[value];
+            if (seen >= rank)
+                return value;
+        }
+        return mHistogram.length - 1;
+    }
+
+    void clear() {
+        Arrays.fill(mHistogram, 0);
+        mCount = 0;
+        mMean = 0;
+        mVariance = 0;
+    }
+
+    /**
+     * Count the pixels of a region of the frame, in frame coordinates, then update the derived statistics.
+     */
+    void accumulate(LumaFrame frame, int left, int top, int right, int bottom) {
+        byte[] data = frame.getData();
+        int stride = frame.getStride();
+        for (int y = top; y < bottom; ++y) {
+            int row = y * stride;
+            for (int x = left; x < right; ++x)
+                ++mHistogram[data[row + x] & 0xff];
+        }
+        long count = 0;
+        long sum = 0;
+        long sumOfSquares = 0;
+        for (int value = 0; value < mHistogram.length; ++value) {
+            long n = mHistogram[value];
+            count += n;
+            sum += n * value;
+            sumOfSquares += n * value * value;
+        }
+        mCount = count;
+        if (0 == count)
+            return;
+        mMean = (double) sum / count;
+        mVariance = Math.max(0, (double) sumOfSquares / count - mMean * mMean);
+    }
+
+    void copyFrom(RoiStats other) {
+        System.arraycopy(other.mHistogram, 0, mHistogram, 0, mHistogram.length);
+        mCount = other.mCount;
+        mMean = other.mMean;
+        mVariance = other.mVariance;
+    }
+}
@@ -0,0 +1,326 @@
+package me.clarius.sdk.mobileapi.example;
+
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import me.clarius.sdk.mobileapi.MobileApi;
+import me.clarius.sdk.mobileapi.PosInfo;
+import me.clarius.sdk.mobileapi.ProcessedImageInfo;
+
+/**
+ * Compute intensity statistics of regions of interest on every luma frame, see RoiStats.
+ * <p>
+ * Receive the frames with ApiHelper.addLumaListener() and the scan area with ApiHelper.addMessageObserver().
+ * Regions are given in scan area coordinates and mapped to each frame, whether it holds the whole image
+ * (possibly downsampled) or only the scan area, see ApiHelper.DecodeMode.
+ * <p>
+ * Statistics are computed on a dedicated thread working directly on the pooled luma frames: only the latest frame is
+ * kept while computing, so the image path is never slowed down, and nothing is allocated per frame once the regions
+ * are set. Results are published to the subscribers on the main thread at a configurable rate.
+ * <p>
+ * The histograms are recounted on each frame rather than updated from the previous one: speckle changes nearly every
+ * pixel between ultrasound frames, so a difference update would still read every pixel, plus the previous frame kept
+ * for the comparison, and write twice the bins. The derived statistics only go through the 256 bins, see RoiStats.
+ */
+
+public class RoiStatsEngine implements ApiHelper.LumaListener, ApiHelper.MessageObserver {
+
+    /**
+     * Receive the statistics on the main thread.
+     */
+    public interface Subscriber {
+        /**
+         * The statistics are reused after this call returns, copy the values to keep them.
+         */
+        void onRoiStats(List<RoiStats> stats);
+    }
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mComputeRunnable = this::computePending;
+    private final Runnable mPublishRunnable = this::publish;
+    private final CopyOnWriteArrayList<Subscriber> mSubscribers = new CopyOnWriteArrayList<>();
+    private final LatencyHistogram mComputeTime = new LatencyHistogram();
+    private final AtomicLong mComputedFrames = new AtomicLong();
+    private final AtomicLong mSkippedFrames = new AtomicLong();
+    private volatile long mPublishIntervalNanos;
+    private volatile Rect mScanArea = null;
+
+    /**
+     * Latest received frame not computed yet, guarded by this object.
+     */
+    private LumaFrame mPending = null;
+    private ProcessedImageInfo mPendingInfo = null;
+    private boolean mScheduled = false;
+
+    /**
+     * Regions and their statistics, only used on the compute thread.
+     * Regions follow the scan area divided in a grid if mGridColumns is not 0.
+     */
+    private RoiStats[] mWorking = new RoiStats[0];
+    private int mGridColumns = 0;
+    private int mGridRows = 0;
+    private int mGridWidth = 0;
+    private int mGridHeight = 0;
+    private long mLastPublishNanos = 0;
+
+    /**
+     * Copy of the statistics for the subscribers, guarded by its lock.
+     */
+    private final Object mPublishedLock = new Object();
+    private List<RoiStats> mPublished = Collections.emptyList();
+
+    /**
+     * @param publishRate The maximum number of publications per second.
+     */
+    public RoiStatsEngine(double publishRate) {
+        setPublishRate(publishRate);
+        mThread = new HandlerThread("MobileApi/RoiStats", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    public void setPublishRate(double publishRate) {
+        if (publishRate <= 0)
+            throw new IllegalArgumentException("publish rate must be positive");
+        mPublishIntervalNanos = (long) (1e9 / publishRate);
+    }
+
+    public void addSubscriber(Subscriber subscriber) {
+        mSubscribers.addIfAbsent(subscriber);
+    }
+
+    public void removeSubscriber(Subscriber subscriber) {
+        mSubscribers.remove(subscriber);
+    }
+
+    /**
+     * Replace the regions, can be called from any thread.
+     *
+     * @param rois The regions in scan area coordinates.
+     */
+    public void setRois(List<Rect> rois) {
+        Rect[] copy = new Rect[rois.size()];
+        for (int i = 0; i < copy.length; ++i)
+            copy[i] = new Rect(rois.get(i));
+        mHandler.post(() -> {
+            mGridColumns = 0;
+            mGridRows = 0;
+            applyRois(copy);
+        });
+    }
+
+    /**
+     * Divide the scan area in a grid of regions, following its size, can be called from any thread.
+     * Replaces the regions set with setRois().
+     */
+    public void setRoiGrid(int columns, int rows) {
+        if (columns <= 0 || rows <= 0)
+            throw new IllegalArgumentException("empty grid");
+        mHandler.post(() -> {
+            mGridColumns = columns;
+            mGridRows = rows;
+            mGridWidth = 0;
+            mGridHeight = 0;
+        });
+    }
+
+    /**
+     * Follow the scan area, called on the dispatch thread.
+     */
+    @Override
+    public void onMessage(Message msg) {
+        if (MobileApi.MSG_SCAN_AREA_CHANGED != msg.what && MobileApi.MSG_RETURN_SCAN_AREA != msg.what)
+            return;
+        Rect area = msg.getData().getParcelable(MobileApi.KEY_B_IMAGE_AREA);
+        if (null != area && !area.isEmpty())
+            mScanArea = new Rect(area);
+    }
+
+    /**
+     * Keep the frame for the compute thread, replacing the one not computed yet, called on the decode thread.
+     */
+    @Override
+    public void onNewLumaFrame(LumaFrame frame, ProcessedImageInfo imageInfo, ArrayList<PosInfo> posInfo) {
+        frame.retain();
+        LumaFrame replaced;
+        boolean schedule;
+        synchronized (this) {
+            replaced = mPending;
+            mPending = frame;
+            mPendingInfo = imageInfo;
+            schedule = !mScheduled;
+            mScheduled = true;
+        }
+        if (null != replaced) {
+            mSkippedFrames.incrementAndGet();
+            replaced.release();
+        }
+        if (schedule && !mHandler.post(mComputeRunnable))
+            dropPending();
+    }
+
+    private void dropPending() {
+        LumaFrame frame;
+        synchronized (this) {
+            frame = mPending;
+            mPending = null;
+            mScheduled = false;
+        }
+        if (null != frame)
+            frame.release();
+    }
+
+    private void computePending() {
+        LumaFrame frame;
+        ProcessedImageInfo info;
+        synchronized (this) {
+            frame = mPending;
+            info = mPendingInfo;
+            mPending = null;
+            mPendingInfo = null;
+            mScheduled = false;
+        }
+        if (null == frame)
+            return;
+        long start = System.nanoTime();
+        try {
+            compute(frame, info);
+        } finally {
+            frame.release();
+        }
+        long end = System.nanoTime();
+        mComputeTime.record(end - start);
+        mComputedFrames.incrementAndGet();
+        if (end - mLastPublishNanos >= mPublishIntervalNanos) {
+            mLastPublishNanos = end;
+            synchronized (mPublishedLock) {
+                for (int i = 0; i < mWorking.length; ++i)
+                    mPublished.get(i).copyFrom(mWorking[i]);
+            }
+            mMainHandler.post(mPublishRunnable);
+        }
+    }
+
+    /**
+     * Map the regions from scan area to frame coordinates and accumulate their statistics.
+     */
+    private void compute(LumaFrame frame, ProcessedImageInfo info) {
+        Rect area = mScanArea;
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        boolean scanAreaOnly = null != area && width == area.width() && height == area.height();
+        float scale = scanAreaOnly || info.width <= 0 ? 1 : (float) width / info.width;
+        int offsetX = scanAreaOnly || null == area ? 0 : Math.round(area.left * scale);
+        int offsetY = scanAreaOnly || null == area ? 0 : Math.round(area.top * scale);
+        if (0 != mGridColumns) {
+            int areaWidth = null != area ? area.width() : info.width;
+            int areaHeight = null != area ? area.height() : info.height;
+            if (areaWidth != mGridWidth || areaHeight != mGridHeight)
+                applyGrid(areaWidth, areaHeight);
+        }
+        for (RoiStats stats : mWorking) {
+            Rect roi = stats.getRoi();
+            int left = clamp(offsetX + Math.round(roi.left * scale), width);
+            int top = clamp(offsetY + Math.round(roi.top * scale), height);
+            int right = clamp(offsetX + Math.round(roi.right * scale), width);
+            int bottom = clamp(offsetY + Math.round(roi.bottom * scale), height);
+            stats.clear();
+            if (left < right && top < bottom)
+                stats.accumulate(frame, left, top, right, bottom);
+        }
+    }
+
+    private static int clamp(int value, int max) {
+        return Math.max(0, Math.min(max, value));
+    }
+
+    private void applyGrid(int width, int height) {
+        mGridWidth = width;
+        mGridHeight = height;
+        Rect[] rois = new Rect[mGridColumns * mGridRows];
+        for (int row = 0; row < mGridRows; ++row) {
+            for (int column = 0; column < mGridColumns; ++column) {
+                rois[row * mGridColumns + column] = new Rect(column * width / mGridColumns, row * height / mGridRows,
+                    (column + 1) * width / mGridColumns, (row + 1) * height / mGridRows);
+            }
+        }
+        applyRois(rois);
+    }
+
+    /**
+     * Replace the regions, on the compute thread: the only place allocating statistics.
+     */
+    private void applyRois(Rect[] rois) {
+        RoiStats[] working = new RoiStats[rois.length];
+        RoiStats[] published = new RoiStats[rois.length];
+        for (int i = 0; i < rois.length; ++i) {
+            working[i] = new RoiStats(rois[i]);
+            published[i] = new RoiStats(rois[i]);
+        }
+        mWorking = working;
+        synchronized (mPublishedLock) {
+            mPublished = Collections.unmodifiableList(Arrays.asList(published));
+        }
+    }
+
+    private void publish() {
+        synchronized (mPublishedLock) {
+            for (Subscriber subscriber : mSubscribers)
+                subscriber.onRoiStats(mPublished);
+        }
+    }
+
+    public long getComputedFrames() {
+        return mComputedFrames.get();
+    }
+
+    /**
+     * Frames replaced by a newer frame before being computed.
+     */
+    public long getSkippedFrames() {
+        return mSkippedFrames.get();
+    }
+
+    public void resetCounters() {
+        mComputedFrames.set(0);
+        mSkippedFrames.set(0);
+        mComputeTime.reset();
+    }
+
+    /**
+     * Stop the compute thread and release the pending frame.
+     */
+    public void release() {
+        mHandler.post(this::dropPending);
+        mThread.quitSafely();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format(Locale.US, "ROI statistics computed: %d, skipped: %d, %.2f ms mean, %.2f ms p99",
+            getComputedFrames(), getSkippedFrames(), mComputeTime.getMeanMs(), mComputeTime.getPercentileMs(99)));
+        synchronized (mPublishedLock) {
+            for (int i = 0; i < mPublished.size(); ++i) {
+                RoiStats stats = mPublished.get(i);
+                builder.append(String.format(Locale.US, "\nROI %d: mean %.1f, sd %.1f, p5 %d, p50 %d, p95 %d", i,
+                    stats.getMean(), stats.getStandardDeviation(), stats.getPercentile(5), stats.getPercentile(50), stats.getPercentile(95)));
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,77 @@
+package me.clarius.sdk.mobileapi.example;
+
+import android.os.Bundle;
+import android.os.Parcel;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Layout of the session recordings, see SessionRecorder and SessionReplay.
+ * <p>
+ * A session is a directory of numbered segments, each made of two preallocated files:
+ * - the segment file: a header followed by records, each record being a message from the service;
+ * - the index file: a header followed by fixed-size entries, one per record, for random access.
+ * <p>
+ * Segment record: what (int), arg1 (int), timestamp (long, nanoseconds since the start of the session),
+ * metadata length (int), data length (int), metadata (a marshalled Bundle), data (the image data, if any).
+ * <p>
+ * Index entry: timestamp (long), record offset in the segment (int), what (int).
+ * <p>
+ * Both headers: magic (int), version (int), segment used bytes or index entry count (long), reserved.
+ * Marshalled bundles are only readable by the same application version, which is fine for QA review.
+ */
+
+final class SessionFormat {
+    static final int SEGMENT_MAGIC = 0x434c5253;
+    static final int INDEX_MAGIC = 0x434c5249;
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 32;
+    static final int RECORD_HEADER_BYTES = 24;
+    static final int INDEX_ENTRY_BYTES = 16;
+
+    private SessionFormat() {
+    }
+
+    static File segmentFile(File dir, int segment) {
+        return new File(dir, String.format(Locale.US, "segment-%04d.dat", segment));
+    }
+
+    static File indexFile(File dir, int segment) {
+        return new File(dir, String.format(Locale.US, "segment-%04d.idx", segment));
+    }
+
+    static void writeHeader(ByteBuffer buffer, int magic, long value) {
+        buffer.putInt(0, magic);
+        buffer.putInt(4, VERSION);
+        buffer.putLong(8, value);
+    }
+
+    static long readHeader(ByteBuffer buffer, int magic) {
+        if (buffer.getInt(0) != magic || buffer.getInt(4) != VERSION)
+            throw new IllegalArgumentException("not a session file");
+        return buffer.getLong(8);
+    }
+
+    static byte[] marshall(Bundle bundle) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeBundle(bundle);
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    static Bundle unmarshall(byte[] bytes, int length) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(bytes, 0, length);
+            parcel.setDataPosition(0);
+            return parcel.readBundle(SessionFormat.class.getClassLoader());
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
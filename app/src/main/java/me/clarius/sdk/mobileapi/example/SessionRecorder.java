@@ -0,0 +1,233 @@
+package me.clarius.sdk.mobileapi.example;
+
+import android.os.Bundle;
+import android.os.Message;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import me.clarius.sdk.mobileapi.MobileApi;
+
+/**
+ * Record a scanning session to disk: the processed images and the state events, see SessionFormat.
+ * <p>
+ * The dispatch thread only enqueues references to the received data, a writer thread appends them sequentially to
+ * memory-mapped segments preallocated on disk, and rolls over to a new segment when the current one is full.
+ * If the writer falls behind and the queue is full, new records are dropped instead of blocking the dispatch thread.
+ */
+
+public class SessionRecorder implements ApiHelper.FrameObserver, ApiHelper.MessageObserver {
+
+    private static final String TAG = "MobileApi/Recorder";
+    private static final int QUEUE_CAPACITY = 64;
+    private static final long STOP_POLL_MS = 100;
+
+    private final File mDir;
+    private final int mSegmentBytes;
+    private final int mIndexEntries;
+    private final ArrayBlockingQueue<Record> mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final long mStartNanos = System.nanoTime();
+    private final AtomicLong mRecorded = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final Thread mThread;
+    private volatile boolean mStopping = false;
+    private int mSegment = -1;
+    private MappedByteBuffer mData = null;
+    private MappedByteBuffer mIndex = null;
+    private int mIndexCount = 0;
+
+    /**
+     * Start recording in a new directory.
+     *
+     * @param dir Where to create the segments, must not exist or be empty.
+     * @param segmentBytes The size of each segment, preallocated on disk.
+     * @param indexEntries The maximum number of records in each segment.
+     */
+    public SessionRecorder(File dir, int segmentBytes, int indexEntries) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Cannot create directory " + dir);
+        mDir = dir;
+        mSegmentBytes = segmentBytes;
+        mIndexEntries = indexEntries;
+        mThread = new Thread(this::run, "MobileApi/Recorder");
+        mThread.start();
+    }
+
+    /**
+     * Queue a processed image, called on the dispatch thread.
+     */
+    @Override
+    public void onFrame(Frame frame) {
+        Bundle meta = new Bundle();
+        meta.putParcelable(MobileApi.KEY_IMAGE_INFO, frame.mInfo);
+        if (null != frame.mPosInfo)
+            meta.putParcelableArrayList(MobileApi.KEY_POS_INFO, frame.mPosInfo);
+        // the image data is kept until written, see Record
+        frame.retain();
+        enqueue(new Record(MobileApi.MSG_NEW_PROCESSED_IMAGE, 0, frame.mDispatchNanos - mStartNanos, meta, frame));
+    }
+
+    /**
+     * Queue a state event, called on the dispatch thread. Processed images are recorded by onFrame().
+     */
+    @Override
+    public void onMessage(Message msg) {
+        switch (msg.what) {
+            case MobileApi.MSG_FREEZE_CHANGED:
+            case MobileApi.MSG_DEPTH_CHANGED:
+            case MobileApi.MSG_GAIN_CHANGED:
+            case MobileApi.MSG_SCAN_AREA_CHANGED:
+            case MobileApi.MSG_BUTTON_EVENT:
+            case MobileApi.MSG_POWER_EVENT:
+            case MobileApi.MSG_LICENSE_CHANGED:
+                // copy the bundle: the original is unparceled lazily on the dispatch thread while the copy is marshalled on the writer thread
+                enqueue(new Record(msg.what, msg.arg1, System.nanoTime() - mStartNanos, new Bundle(msg.getData()), null));
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void enqueue(Record record) {
+        if (mStopping || !mQueue.offer(record)) {
+            mDropped.incrementAndGet();
+            record.release();
+        }
+    }
+
+    /**
+     * Stop recording without waiting, pending records are still written and the last segment is finalized by the
+     * writer thread. Never blocks, even if the queue is full or the writer thread already stopped on an error.
+     */
+    public void stop() {
+        mStopping = true;
+    }
+
+    public long getRecordedCount() {
+        return mRecorded.get();
+    }
+
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    public File getDirectory() {
+        return mDir;
+    }
+
+    private void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        try {
+            while (true) {
+                // poll to notice the stop request, only once the queue is drained
+                Record record = mQueue.poll(STOP_POLL_MS, TimeUnit.MILLISECONDS);
+                if (null == record) {
+                    if (mStopping)
+                        break;
+                    continue;
+                }
+                try {
+                    write(record);
+                } finally {
+                    record.release();
+                }
+                mRecorded.incrementAndGet();
+            }
+        } catch (InterruptedException | IOException e) {
+            Log.e(TAG, "Recording stopped", e);
+        } finally {
+            closeSegment();
+        }
+    }
+
+    private void write(Record record) throws IOException {
+        byte[] meta = null != record.mMeta ? SessionFormat.marshall(record.mMeta) : new byte[0];
+        int dataLength = null != record.mFrame ? record.mFrame.mLength : 0;
+        int size = SessionFormat.RECORD_HEADER_BYTES + meta.length + dataLength;
+        if (SessionFormat.HEADER_BYTES + size > mSegmentBytes) {
+            Log.w(TAG, "Record too large for a segment: " + size + " bytes");
+            mDropped.incrementAndGet();
+            return;
+        }
+        if (null == mData || mData.remaining() < size || mIndexCount == mIndexEntries)
+            openSegment();
+        int offset = mData.position();
+        mData.putInt(record.mWhat);
+        mData.putInt(record.mArg1);
+        mData.putLong(record.mTimestampNanos);
+        mData.putInt(meta.length);
+        mData.putInt(dataLength);
+        mData.put(meta);
+        if (dataLength > 0)
+            mData.put(record.mFrame.mData, 0, dataLength);
+        mIndex.putLong(record.mTimestampNanos);
+        mIndex.putInt(offset);
+        mIndex.putInt(record.mWhat);
+        ++mIndexCount;
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            // the mapping remains valid after the channel is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private void openSegment() throws IOException {
+        closeSegment();
+        ++mSegment;
+        mData = map(SessionFormat.segmentFile(mDir, mSegment), mSegmentBytes);
+        mIndex = map(SessionFormat.indexFile(mDir, mSegment),
+            SessionFormat.HEADER_BYTES + (long) mIndexEntries * SessionFormat.INDEX_ENTRY_BYTES);
+        mData.position(SessionFormat.HEADER_BYTES);
+        mIndex.position(SessionFormat.HEADER_BYTES);
+        mIndexCount = 0;
+        Log.v(TAG, "Recording segment " + mSegment + " in " + mDir);
+    }
+
+    /**
+     * Finalize the headers of the current segment so it can be read back.
+     */
+    private void closeSegment() {
+        if (null == mData)
+            return;
+        SessionFormat.writeHeader(mData, SessionFormat.SEGMENT_MAGIC, mData.position());
+        SessionFormat.writeHeader(mIndex, SessionFormat.INDEX_MAGIC, mIndexCount);
+        mData.force();
+        mIndex.force();
+        mData = null;
+        mIndex = null;
+    }
+
+    private static class Record {
+        final int mWhat;
+        final int mArg1;
+        final long mTimestampNanos;
+        final Bundle mMeta;
+        /**
+         * The processed image, retained until written, or null for state events.
+         */
+        final Frame mFrame;
+
+        Record(int what, int arg1, long timestampNanos, Bundle meta, Frame frame) {
+            mWhat = what;
+            mArg1 = arg1;
+            mTimestampNanos = timestampNanos;
+            mMeta = meta;
+            mFrame = frame;
+        }
+
+        void release() {
+            if (null != mFrame)
+                mFrame.release();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package me.clarius.sdk.mobileapi.example;
+
+import android.os.Bundle;
+import android.os.Message;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import me.clarius.sdk.mobileapi.MobileApi;
+
+/**
+ * Replay a session recorded by SessionRecorder, see SessionFormat.
+ * <p>
+ * Recorded messages (processed images and state events) are injected in ApiHelper, so they go through the same
+ * dispatch and decoding path as live messages before reaching the listener: throughput measured on a replay is comparable
+ * to live imaging, and works without a scanner.
+ * <p>
+ * Injected messages are tagged with the replay in Message.obj, so the replay observes when its own messages are
+ * dispatched, whatever the dispatch path does with them afterwards.
+ */
+
+public class SessionReplay implements ApiHelper.MessageObserver {
+
+    private static final String TAG = "MobileApi/Replay";
+
+    /**
+     * Maximum number of messages injected but not yet dispatched when replaying as fast as possible.
+     */
+    private static final int MAX_MESSAGES_IN_FLIGHT = 4;
+
+    public enum Pacing {
+        /**
+         * Same timing as recorded.
+         */
+        ORIGINAL,
+        /**
+         * Recorded timing divided by the rate.
+         */
+        ACCELERATED,
+        /**
+         * No waiting between messages, only limited by the dispatch thread.
+         */
+        AS_FAST_AS_POSSIBLE,
+    }
+
+    private final File mDir;
+    private Thread mThread = null;
+    private volatile long mReplayedMessages = 0;
+    private volatile long mReplayedFrames = 0;
+    private volatile long mElapsedNanos = 0;
+    private final AtomicLong mDispatchedMessages = new AtomicLong();
+
+    /**
+     * Prepare the replay of a session.
+     *
+     * @param dir The directory of the recorded session.
+     */
+    public SessionReplay(File dir) {
+        mDir = dir;
+    }
+
+    /**
+     * Start replaying on a dedicated thread. Does nothing if already started.
+     *
+     * @param api Where to inject the messages.
+     * @param pacing How fast to replay.
+     * @param rate Speed factor with Pacing.ACCELERATED, ignored otherwise.
+     * @param onFinished Called on the replay thread when done or stopped.
+     */
+    public synchronized void start(ApiHelper api, Pacing pacing, double rate, Runnable onFinished) {
+        if (null != mThread)
+            return;
+        double speed = Pacing.ACCELERATED == pacing ? rate : 1;
+        if (speed <= 0)
+            throw new IllegalArgumentException("rate must be positive");
+        mThread = new Thread(() -> {
+            api.addMessageObserver(this);
+            try {
+                replay(api, pacing, speed);
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot replay " + mDir, e);
+            } catch (InterruptedException e) {
+                Log.v(TAG, "Replay stopped");
+            } finally {
+                api.removeMessageObserver(this);
+            }
+            onFinished.run();
+        }, "MobileApi/Replay");
+        mThread.start();
+    }
+
+    /**
+     * Stop replaying, the messages already injected are still handled.
+     */
+    public synchronized void stop() {
+        if (null != mThread) {
+            mThread.interrupt();
+            mThread = null;
+        }
+    }
+
+    /**
+     * Count our injected messages reaching the dispatch thread, called on the dispatch thread.
+     */
+    @Override
+    public void onMessage(Message msg) {
+        if (this == msg.obj)
+            mDispatchedMessages.incrementAndGet();
+    }
+
+    public long getReplayedMessages() {
+        return mReplayedMessages;
+    }
+
+    public long getReplayedFrames() {
+        return mReplayedFrames;
+    }
+
+    /**
+     * Frames injected per second of replay.
+     */
+    public double getFrameRate() {
+        return 0 == mElapsedNanos ? 0 : mReplayedFrames * 1e9 / mElapsedNanos;
+    }
+
+    private static MappedByteBuffer map(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+    }
+
+    private void replay(ApiHelper api, Pacing pacing, double speed) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        long first = -1;
+        for (int segment = 0; SessionFormat.indexFile(mDir, segment).exists(); ++segment) {
+            MappedByteBuffer data = map(SessionFormat.segmentFile(mDir, segment));
+            MappedByteBuffer index = map(SessionFormat.indexFile(mDir, segment));
+            SessionFormat.readHeader(data, SessionFormat.SEGMENT_MAGIC);
+            long count = SessionFormat.readHeader(index, SessionFormat.INDEX_MAGIC);
+            for (int i = 0; i < count; ++i) {
+                int entry = SessionFormat.HEADER_BYTES + i * SessionFormat.INDEX_ENTRY_BYTES;
+                long timestamp = index.getLong(entry);
+                if (first < 0)
+                    first = timestamp;
+                if (Pacing.AS_FAST_AS_POSSIBLE == pacing) {
+                    while (mReplayedMessages - mDispatchedMessages.get() >= MAX_MESSAGES_IN_FLIGHT)
+                        Thread.sleep(1);
+                } else {
+                    long due = start + (long) ((timestamp - first) / speed);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0)
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+                Message msg = readMessage(data, index.getInt(entry + 8));
+                msg.obj = this;
+                if (MobileApi.MSG_NEW_PROCESSED_IMAGE == msg.what)
+                    ++mReplayedFrames;
+                api.inject(msg);
+                ++mReplayedMessages;
+                mElapsedNanos = System.nanoTime() - start;
+            }
+        }
+        Log.v(TAG, "Replayed " + mReplayedMessages + " messages from " + mDir);
+    }
+
+    private static Message readMessage(MappedByteBuffer data, int offset) {
+        int what = data.getInt(offset);
+        int arg1 = data.getInt(offset + 4);
+        int metaLength = data.getInt(offset + 16);
+        int dataLength = data.getInt(offset + 20);
+        byte[] meta = new byte[metaLength];
+        data.position(offset + SessionFormat.RECORD_HEADER_BYTES);
+        data.get(meta);
+        Bundle bundle = metaLength > 0 ? SessionFormat.unmarshall(meta, metaLength) : new Bundle();
+        if (dataLength > 0) {
+            byte[] image = new byte[dataLength];
+            data.get(image);
+            bundle.putByteArray(MobileApi.KEY_IMAGE_DATA, image);
+        }
+        Message msg = Message.obtain(null, what);
+        msg.arg1 = arg1;
+        msg.setData(bundle);
+        return msg;
+    }
+}
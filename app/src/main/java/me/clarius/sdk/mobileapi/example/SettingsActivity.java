@@ -1,10 +1,12 @@
 package me.clarius.sdk.mobileapi.example;
 
 import android.os.Bundle;
+import android.text.InputType;
 import android.view.MenuItem;
 
 import androidx.appcompat.app.ActionBar;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.preference.EditTextPreference;
 import androidx.preference.ListPreference;
 import androidx.preference.PreferenceFragmentCompat;
 
@@ -39,12 +41,25 @@ public class SettingsActivity extends AppCompatActivity {
         public void onCreatePreferences(Bundle savedInstanceState, String rootKey) {
             setPreferencesFromResource(R.xml.root_preferences, rootKey);
             fillImageCompressionTypes(findPreference("image_compression_type"));
+            // the input type in the preference XML is not applied to the dialog by androidx
+            setNumberInput("image_width", InputType.TYPE_CLASS_NUMBER);
+            setNumberInput("image_height", InputType.TYPE_CLASS_NUMBER);
+            setNumberInput("load_fps", InputType.TYPE_CLASS_NUMBER | InputType.TYPE_NUMBER_FLAG_DECIMAL);
+            setNumberInput("load_jitter_ms", InputType.TYPE_CLASS_NUMBER | InputType.TYPE_NUMBER_FLAG_DECIMAL);
+            setNumberInput("load_burst_frames", InputType.TYPE_CLASS_NUMBER);
+        }
+        private void setNumberInput(String key, int inputType) {
+            EditTextPreference p = findPreference(key);
+            if (null == p) throw new AssertionError();
+            p.setOnBindEditTextListener(editText -> editText.setInputType(inputType));
         }
         private void fillImageCompressionTypes(ListPreference p) {
             if (null == p) throw new AssertionError();
-            CharSequence [] entries = {MobileApi.COMPRESSION_TYPE_JPEG, MobileApi.COMPRESSION_TYPE_PNG };
+            CharSequence [] values = {MobileApi.COMPRESSION_TYPE_JPEG, MobileApi.COMPRESSION_TYPE_PNG, ImageConfig.COMPRESSION_TYPE_RAW };
+            // raw is only served by the local load generator, not by the Clarius App
+            CharSequence [] entries = {MobileApi.COMPRESSION_TYPE_JPEG, MobileApi.COMPRESSION_TYPE_PNG, getString(R.string.compression_type_raw_local) };
             p.setEntries(entries);
-            p.setEntryValues(entries);
+            p.setEntryValues(values);
         }
     }
 }
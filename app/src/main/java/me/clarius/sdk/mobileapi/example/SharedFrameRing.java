@@ -0,0 +1,216 @@
+package me.clarius.sdk.mobileapi.example;
+
+import android.os.Build;
+import android.os.Bundle;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+
+import androidx.annotation.RequiresApi;
+
+import java.io.Closeable;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Ring of frame slots in shared memory, to transfer the image data without copying it through Binder.
+ * <p>
+ * The client creates the ring and sends it with MSG_CONFIGURE_IMAGE, see ImageConfig.setSharedFrameRing()
+ * and ApiHelper.setSharedMemoryTransport().
+ * A service supporting it writes each frame in the next slot and sends MSG_NEW_PROCESSED_IMAGE with the ring
+ * identifier, slot index and sequence number instead of KEY_IMAGE_DATA. Other services ignore the ring and keep
+ * sending the image data in the bundle, which the client still accepts.
+ * <p>
+ * Slot layout: sequence number (int), data length (int), data. The writer clears the sequence number before writing
+ * the data and sets it last, the reader checks it before and after copying the data: when the writer laps the reader,
+ * the frame is reported as overwritten instead of being decoded from torn data.
+ * The ring must have more slots than frames pending in the client, see FrameQueue.
+ * <p>
+ * Accesses to the mapped memory are plain, so they are ordered with a full fence around each sequence number access,
+ * see fence(): VarHandle.fullFence() from Android 13. Before, a volatile write and read are used instead, which ART
+ * compiles to full hardware barriers, but which the Java memory model only orders with other volatile accesses:
+ * on these versions the torn frame detection relies on this ART behavior.
+ */
+
+@RequiresApi(api = Build.VERSION_CODES.O_MR1)
+public class SharedFrameRing implements Closeable {
+
+    public static final String KEY_SHARED_MEMORY = "me.clarius.sdk.mobileapi.example.SHARED_MEMORY";
+    public static final String KEY_SLOT_BYTES = "me.clarius.sdk.mobileapi.example.SLOT_BYTES";
+    public static final String KEY_RING_ID = "me.clarius.sdk.mobileapi.example.RING_ID";
+    public static final String KEY_SLOT = "me.clarius.sdk.mobileapi.example.SLOT";
+    public static final String KEY_SEQUENCE = "me.clarius.sdk.mobileapi.example.SEQUENCE";
+
+    static final int SLOT_HEADER_BYTES = 8;
+    private static final int NO_SEQUENCE = 0;
+    private static final AtomicInteger sNextId = new AtomicInteger(1);
+    private static volatile int sFence = 0;
+
+    private final int mId;
+    private final SharedMemory mMemory;
+    private final ByteBuffer mBuffer;
+    private final int mSlotBytes;
+    private final int mSlots;
+    private int mNextSlot = 0;
+    private int mNextSequence = 1;
+
+    private SharedFrameRing(int id, SharedMemory memory, int slotBytes, boolean writable) throws ErrnoException {
+        mId = id;
+        mMemory = memory;
+        mBuffer = writable ? memory.mapReadWrite() : memory.mapReadOnly();
+        mSlotBytes = slotBytes;
+        mSlots = memory.getSize() / slotBytes;
+    }
+
+    /**
+     * Create a ring to receive frames, on the client side.
+     *
+     * @param slots The number of slots.
+     * @param maxFrameBytes The largest frame accepted, larger frames are sent in the bundle.
+     */
+    public static SharedFrameRing create(int slots, int maxFrameBytes) throws ErrnoException {
+        long slotBytes = SLOT_HEADER_BYTES + (long) maxFrameBytes;
+        long size = slots * slotBytes;
+        if (slots <= 0 || maxFrameBytes <= 0 || size > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Invalid frame ring size: " + slots + " slots of " + maxFrameBytes + " bytes");
+        return new SharedFrameRing(sNextId.getAndIncrement(), SharedMemory.create("MobileApi/Frames", (int) size), (int) slotBytes, false);
+    }
+
+    /**
+     * Map the ring received with MSG_CONFIGURE_IMAGE to send frames, on the service side.
+     *
+     * @return The ring, or null if the configuration does not contain one.
+     */
+    public static SharedFrameRing fromConfig(Bundle config) throws ErrnoException {
+        SharedMemory memory = config.getParcelable(KEY_SHARED_MEMORY);
+        int slotBytes = config.getInt(KEY_SLOT_BYTES);
+        if (null == memory || slotBytes <= SLOT_HEADER_BYTES)
+            return null;
+        return new SharedFrameRing(config.getInt(KEY_RING_ID), memory, slotBytes, true);
+    }
+
+    /**
+     * Add the ring to the bundle sent with MSG_CONFIGURE_IMAGE.
+     */
+    void putInto(Bundle config) {
+        config.putParcelable(KEY_SHARED_MEMORY, mMemory);
+        config.putInt(KEY_SLOT_BYTES, mSlotBytes);
+        config.putInt(KEY_RING_ID, mId);
+    }
+
+    public int getMaxFrameBytes() {
+        return mSlotBytes - SLOT_HEADER_BYTES;
+    }
+
+    /**
+     * Write a frame in the next slot and fill the message bundle with its location, on the service side.
+     *
+     * @return False if the frame does not fit, then the caller sends the image data in the bundle.
+     */
+    public boolean write(byte[] data, Bundle message) {
+        if (data.length > getMaxFrameBytes())
+            return false;
+        int slot = mNextSlot;
+        int sequence = mNextSequence;
+        mNextSlot = (slot + 1) % mSlots;
+        mNextSequence = sequence == Integer.MAX_VALUE ? 1 : sequence + 1;
+        int offset = slot * mSlotBytes;
+        mBuffer.putInt(offset, NO_SEQUENCE);
+        fence();
+        mBuffer.putInt(offset + 4, data.length);
+        ByteBuffer dst = mBuffer.duplicate();
+        dst.position(offset + SLOT_HEADER_BYTES);
+        dst.put(data);
+        fence();
+        mBuffer.putInt(offset, sequence);
+        message.putInt(KEY_RING_ID, mId);
+        message.putInt(KEY_SLOT, slot);
+        message.putInt(KEY_SEQUENCE, sequence);
+        return true;
+    }
+
+    /**
+     * Whether the message refers to a frame in shared memory instead of containing the image data.
+     */
+    public static boolean isShared(Bundle message) {
+        return message.containsKey(KEY_SLOT);
+    }
+
+    /**
+     * The length of the frame referred to by the message, to get a large enough buffer for readInto(), on the client side.
+     *
+     * @return The length in bytes, or -1 if the frame is from another ring or was already overwritten by a newer frame.
+     */
+    public int peekLength(Bundle message) {
+        int offset = slotOffset(message);
+        if (offset < 0)
+            return -1;
+        int sequence = message.getInt(KEY_SEQUENCE);
+        if (mBuffer.getInt(offset) != sequence)
+            return -1;
+        fence();
+        int length = mBuffer.getInt(offset + 4);
+        if (length < 0 || length > getMaxFrameBytes())
+            return -1;
+        return length;
+    }
+
+    /**
+     * Copy the frame referred to by the message out of its slot, on the client side.
+     * <p>
+     * The data is copied into a buffer provided by the caller, usually from a FrameBufferPool, rather than a new array:
+     * it cannot be decoded in place since the writer reuses the slot as soon as the ring wraps around.
+     *
+     * @param dst The buffer receiving the data, at least as large as the length returned by peekLength().
+     * @param length The length returned by peekLength().
+     * @return False if the frame was overwritten by a newer frame, then dst is left with partial data.
+     */
+    public boolean readInto(Bundle message, byte[] dst, int length) {
+        int offset = slotOffset(message);
+        if (offset < 0 || dst.length < length)
+            return false;
+        int sequence = message.getInt(KEY_SEQUENCE);
+        if (mBuffer.getInt(offset) != sequence)
+            return false;
+        fence();
+        if (mBuffer.getInt(offset + 4) != length)
+            return false;
+        ByteBuffer src = mBuffer.duplicate();
+        src.position(offset + SLOT_HEADER_BYTES);
+        src.get(dst, 0, length);
+        fence();
+        return mBuffer.getInt(offset) == sequence;
+    }
+
+    /**
+     * The offset of the slot referred to by the message, or -1 if the message does not refer to a slot of this ring.
+     */
+    private int slotOffset(Bundle message) {
+        int slot = message.getInt(KEY_SLOT, -1);
+        int sequence = message.getInt(KEY_SEQUENCE, NO_SEQUENCE);
+        if (message.getInt(KEY_RING_ID) != mId || slot < 0 || slot >= mSlots || sequence == NO_SEQUENCE)
+            return -1;
+        return slot * mSlotBytes;
+    }
+
+    /**
+     * Keep the slot accesses on each side of the fence in order, for the compiler and the CPU.
+     */
+    private static void fence() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            VarHandle.fullFence();
+        } else {
+            sFence = 0;
+            int ignored = sFence;
+        }
+    }
+
+    /**
+     * Unmap and release the ring, the service keeps its own mapping until it is done.
+     */
+    @Override
+    public void close() {
+        SharedMemory.unmap(mBuffer);
+        mMemory.close();
+    }
+}
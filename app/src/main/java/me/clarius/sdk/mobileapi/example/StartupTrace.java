@@ -0,0 +1,109 @@
+package me.clarius.sdk.mobileapi.example;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Named timings of the startup phases, from the process start to the first image on screen.
+ * <p>
+ * Each phase is marked once, the first time it is reached: later marks of the same phase are ignored, so marks can be
+ * left on paths run for every frame or every connection. Once the first image is presented, the trace is complete and
+ * logged on one line with the app version, to track the time to first image from release to release.
+ * <p>
+ * Marks can be called from any thread.
+ */
+
+public final class StartupTrace {
+
+    private static final String TAG = "MobileApi/Startup";
+
+    public static final String APPLICATION_CREATED = "application_created";
+    public static final String ACTIVITY_CREATED = "activity_created";
+    public static final String PACKAGES_LISTED = "packages_listed";
+    public static final String PREWARMED = "prewarmed";
+    public static final String BIND_REQUESTED = "bind_requested";
+    public static final String SERVICE_CONNECTED = "service_connected";
+    public static final String REGISTERED = "registered";
+    public static final String IMAGE_CONFIG_SENT = "image_config_sent";
+    public static final String FIRST_FRAME_RECEIVED = "first_frame_received";
+    public static final String FIRST_FRAME_DECODED = "first_frame_decoded";
+    public static final String FIRST_FRAME_DELIVERED = "first_frame_delivered";
+    public static final String FIRST_FRAME_PRESENTED = "first_frame_presented";
+
+    /**
+     * Elapsed realtime of the process start, the origin of all timings.
+     */
+    private static final long sStartMillis = Process.getStartElapsedRealtime();
+
+    /**
+     * Milliseconds since the process start by phase, in the order reached, guarded by the class.
+     */
+    private static final LinkedHashMap<String, Long> sPhases = new LinkedHashMap<>();
+    private static volatile boolean sComplete = false;
+
+    /**
+     * Snapshot of the phases already marked, replaced under the class lock, so the later marks of a phase, made for
+     * every frame until the first one is presented, return without locking.
+     */
+    private static volatile Set<String> sMarked = Collections.emptySet();
+
+    private StartupTrace() {
+    }
+
+    /**
+     * Record the time this phase is first reached, then the trace is complete if it is the first presented frame.
+     */
+    public static void mark(String phase) {
+        if (sComplete || sMarked.contains(phase))
+            return;
+        long elapsed = SystemClock.elapsedRealtime() - sStartMillis;
+        String summary = null;
+        synchronized (StartupTrace.class) {
+            if (sComplete || sPhases.containsKey(phase))
+                return;
+            sPhases.put(phase, elapsed);
+            sMarked = Collections.unmodifiableSet(new HashSet<>(sPhases.keySet()));
+            if (FIRST_FRAME_PRESENTED.equals(phase)) {
+                sComplete = true;
+                summary = summary();
+            }
+        }
+        if (null != summary)
+            Log.i(TAG, "Version " + BuildConfig.VERSION_NAME + ", " + summary);
+    }
+
+    private static String summary() {
+        StringBuilder ret = new StringBuilder();
+        for (Map.Entry<String, Long> phase : sPhases.entrySet()) {
+            if (ret.length() > 0)
+                ret.append(", ");
+            ret.append(phase.getKey()).append(": ").append(phase.getValue()).append(" ms");
+        }
+        return ret.toString();
+    }
+
+    /**
+     * Describe the phases reached so far, in milliseconds since the process start.
+     */
+    public static String describe() {
+        synchronized (StartupTrace.class) {
+            if (sPhases.isEmpty())
+                return "Startup: no phase reached";
+            StringBuilder ret = new StringBuilder("Startup (ms since process start):");
+            for (Map.Entry<String, Long> phase : sPhases.entrySet())
+                ret.append(String.format(Locale.US, "\n%s: %d", phase.getKey(), phase.getValue()));
+            Long firstImage = sPhases.get(FIRST_FRAME_PRESENTED);
+            if (null != firstImage)
+                ret.append(String.format(Locale.US, "\nTime to first image: %d ms", firstImage));
+            return ret.toString();
+        }
+    }
+}
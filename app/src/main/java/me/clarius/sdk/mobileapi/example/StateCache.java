@@ -0,0 +1,167 @@
+package me.clarius.sdk.mobileapi.example;
+
+import android.graphics.Rect;
+
+import java.util.ArrayList;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import me.clarius.sdk.mobileapi.ProbeInfo;
+
+/**
+ * Last known scanner state, kept current by the ApiHelper from the change events and the replies of the service.
+ * <p>
+ * Each update gets a version number increasing across all fields, and the time it was received, so readers can
+ * bound the age of the values they use, see ApiHelper.getDepth() and the other cached queries.
+ * Values are unknown (null) until first received and after disconnecting.
+ * <p>
+ * Thread-safe: updated and cleared on the dispatch thread, read from any thread. Subscribers are notified on the
+ * dispatch thread when a value changes, they must return quickly.
+ */
+
+public class StateCache {
+
+    /**
+     * A cached field, with the type of its values.
+     */
+    public static final class Field<T> {
+        final int index;
+        final String name;
+
+        private Field(int index, String name) {
+            this.index = index;
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    public static final Field<Double> DEPTH = new Field<>(0, "depth");
+    public static final Field<Double> GAIN = new Field<>(1, "gain");
+    public static final Field<Boolean> FREEZE = new Field<>(2, "freeze");
+    public static final Field<Rect> SCAN_AREA = new Field<>(3, "scan area");
+    public static final Field<Boolean> LICENSE = new Field<>(4, "license");
+    public static final Field<ProbeInfo> PROBE_INFO = new Field<>(5, "probe info");
+    private static final Field<?>[] ALL = {DEPTH, GAIN, FREEZE, SCAN_AREA, LICENSE, PROBE_INFO};
+    private static final int FIELDS = ALL.length;
+
+    /**
+     * A value with its version and reception time.
+     */
+    public static final class Entry<T> {
+        public final T value;
+        public final long version;
+        public final long timeNanos;
+
+        Entry(T value, long version, long timeNanos) {
+            this.value = value;
+            this.version = version;
+            this.timeNanos = timeNanos;
+        }
+
+        public long getAgeMs() {
+            return (System.nanoTime() - timeNanos) / 1000000;
+        }
+    }
+
+    /**
+     * Receive the new values of a field.
+     */
+    public interface Subscriber<T> {
+        /**
+         * @param value The new value, or null when it becomes unknown.
+         */
+        void onChanged(T value, long version);
+    }
+
+    private final AtomicLong mVersion = new AtomicLong();
+    private final AtomicReferenceArray<Entry<?>> mEntries = new AtomicReferenceArray<>(FIELDS);
+    private final ArrayList<CopyOnWriteArrayList<Subscriber<?>>> mSubscribers = new ArrayList<>(FIELDS);
+
+    public StateCache() {
+        for (int i = 0; i < FIELDS; ++i)
+            mSubscribers.add(new CopyOnWriteArrayList<>());
+    }
+
+    /**
+     * The last known value with its version and age, or null if unknown.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Entry<T> getEntry(Field<T> field) {
+        return (Entry<T>) mEntries.get(field.index);
+    }
+
+    /**
+     * The last known value, or null if unknown.
+     */
+    public <T> T get(Field<T> field) {
+        Entry<T> entry = getEntry(field);
+        return null == entry ? null : entry.value;
+    }
+
+    /**
+     * The last known value if received at most maxAgeMs ago, or null.
+     */
+    public <T> T getFresh(Field<T> field, long maxAgeMs) {
+        Entry<T> entry = getEntry(field);
+        return null == entry || entry.getAgeMs() > maxAgeMs ? null : entry.value;
+    }
+
+    /**
+     * Notify the subscriber of the changes of a field. Does nothing if already subscribed.
+     */
+    public <T> void subscribe(Field<T> field, Subscriber<T> subscriber) {
+        mSubscribers.get(field.index).addIfAbsent(subscriber);
+    }
+
+    public <T> void unsubscribe(Field<T> field, Subscriber<T> subscriber) {
+        mSubscribers.get(field.index).remove(subscriber);
+    }
+
+    /**
+     * Store a value received from the service, notifying the subscribers if it changed.
+     */
+    <T> void put(Field<T> field, T value) {
+        long version = mVersion.incrementAndGet();
+        Entry<?> previous = mEntries.getAndSet(field.index, new Entry<>(value, version, System.nanoTime()));
+        if (null == previous || !Objects.equals(previous.value, value))
+            notifySubscribers(field, value, version);
+    }
+
+    /**
+     * Forget all the values, for example when disconnecting, on the dispatch thread like put().
+     */
+    void clear() {
+        long version = mVersion.incrementAndGet();
+        for (int i = 0; i < FIELDS; ++i) {
+            Entry<?> previous = mEntries.getAndSet(i, null);
+            if (null != previous && null != previous.value)
+                notifySubscribers(ALL[i], null, version);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void notifySubscribers(Field<?> field, Object value, long version) {
+        for (Subscriber<?> subscriber : mSubscribers.get(field.index))
+            ((Subscriber<Object>) subscriber).onChanged(value, version);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("State:");
+        for (int i = 0; i < FIELDS; ++i) {
+            Entry<?> entry = mEntries.get(i);
+            builder.append("\n").append(ALL[i]).append(": ");
+            if (null == entry)
+                builder.append("unknown");
+            else
+                builder.append(entry.value).append(" (v").append(entry.version).append(", ").append(entry.getAgeMs()).append(" ms ago)");
+        }
+        return builder.toString();
+    }
+}
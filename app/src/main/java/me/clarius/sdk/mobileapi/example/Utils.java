@@ -61,20 +61,98 @@ public class Utils {
         return ret.toString();
     }
 
+    /**
+     * Read a positive or zero number stored as a string, falling back to the default if the stored value is invalid.
+     * <p>
+     * Values saved before the preferences were restricted to numbers may not parse, and must not prevent the startup.
+     */
+    private static double getNumberString(SharedPreferences prefs, String key, String defaultValue) {
+        String value = prefs.getString(key, defaultValue);
+        try {
+            double number = null != value ? Double.parseDouble(value) : Double.NaN;
+            if (number >= 0 && !Double.isInfinite(number))
+                return number;
+        } catch (NumberFormatException e) {
+            // fall back to the default below
+        }
+        Log.w(TAG, "Invalid number for " + key + ": " + value + ", using the default " + defaultValue);
+        return Double.parseDouble(defaultValue);
+    }
+
     /**
      * Create an image config object form the app preferences.
      */
     public static ImageConfig createImageConfig(Context context, SharedPreferences prefs) {
         Resources res = context.getResources();
-        // Note: width and height are stored as strings in the Android preferences, not integers.
-        String widthString = prefs.getString("image_width", res.getString(R.string.default_width));
-        if (null == widthString) throw new AssertionError();
-        String heightString = prefs.getString("image_height", res.getString(R.string.default_width));
-        if (null == heightString) throw new AssertionError();
-        return new ImageConfig(Integer.parseInt(widthString), Integer.parseInt(heightString))
+        // Note: numbers are stored as strings in the Android preferences, not integers.
+        return new ImageConfig((int) getNumberString(prefs, "image_width", res.getString(R.string.default_width)),
+            (int) getNumberString(prefs, "image_height", res.getString(R.string.default_height)))
             .setCompressionType(prefs.getString("image_compression_type", res.getString(R.string.default_compression_type)))
             .setCompressionQuality(prefs.getInt("image_compression_quality", res.getInteger(R.integer.default_compression_quality)))
-            .setSeparateOverlays(prefs.getBoolean("image_separate_overlays", res.getBoolean(R.bool.default_separate_overlays)));
+            .setSeparateOverlays(prefs.getBoolean("image_separate_overlays", res.getBoolean(R.bool.default_separate_overlays)))
+            .setLoadProfile(getNumberString(prefs, "load_fps", res.getString(R.string.default_load_fps)),
+                getNumberString(prefs, "load_jitter_ms", res.getString(R.string.default_load_jitter_ms)),
+                (int) getNumberString(prefs, "load_burst_frames", res.getString(R.string.default_load_burst_frames)));
+    }
+
+    /**
+     * Apply the connection settings from the app preferences, before connecting.
+     */
+    public static void configureApi(Context context, SharedPreferences prefs, ApiHelper api) {
+        Resources res = context.getResources();
+        api.setDispatchMode(getDispatchMode(context, prefs));
+        api.setFramePolicy(getFramePolicy(context, prefs), res.getInteger(R.integer.frame_queue_capacity));
+        api.setDecodeMode(prefs.getBoolean("decode_scan_area", res.getBoolean(R.bool.default_decode_scan_area))
+            ? ApiHelper.DecodeMode.SCAN_AREA : ApiHelper.DecodeMode.FULL_FRAME);
+        api.setFrozenPoolFloor(res.getInteger(R.integer.frozen_pool_floor));
+        api.setChangeDetection(getChangeDetection(context, prefs), false);
+        api.setAutoReconnect(prefs.getBoolean("auto_reconnect", res.getBoolean(R.bool.default_auto_reconnect)));
+        api.setSharedMemoryTransport(prefs.getBoolean("shared_memory_transport", res.getBoolean(R.bool.default_shared_memory_transport)));
+        api.setImageOutput(ApiHelper.ImageOutput.BITMAP_AND_LUMA);
+    }
+
+    /**
+     * Whether to connect as soon as the app starts, from the app preferences.
+     */
+    public static boolean getConnectOnStartup(Context context, SharedPreferences prefs) {
+        return prefs.getBoolean("connect_on_startup", context.getResources().getBoolean(R.bool.default_connect_on_startup));
+    }
+
+    /**
+     * Read the dispatch mode from the app preferences.
+     */
+    public static ApiHelper.DispatchMode getDispatchMode(Context context, SharedPreferences prefs) {
+        Resources res = context.getResources();
+        String mode = prefs.getString("dispatch_mode", res.getString(R.string.default_dispatch_mode));
+        if (res.getString(R.string.dispatch_mode_main).equals(mode))
+            return ApiHelper.DispatchMode.MAIN_THREAD;
+        return ApiHelper.DispatchMode.BACKGROUND_THREAD;
+    }
+
+    /**
+     * Read the frame change detection mode from the app preferences.
+     */
+    public static FrameChangeDetector.Mode getChangeDetection(Context context, SharedPreferences prefs) {
+        Resources res = context.getResources();
+        String mode = prefs.getString("change_detection", res.getString(R.string.default_change_detection));
+        if (res.getString(R.string.change_detection_exact).equals(mode))
+            return FrameChangeDetector.Mode.EXACT;
+        if (res.getString(R.string.change_detection_sparse).equals(mode))
+            return FrameChangeDetector.Mode.SPARSE;
+        return FrameChangeDetector.Mode.OFF;
+    }
+
+    /**
+     * Read the backpressure policy from the app preferences.
+     */
+    public static FrameQueue.Policy getFramePolicy(Context context, SharedPreferences prefs) {
+        Resources res = context.getResources();
+        String policy = prefs.getString("frame_policy", res.getString(R.string.default_frame_policy));
+        if (res.getString(R.string.frame_policy_drop_oldest).equals(policy))
+            return FrameQueue.Policy.DROP_OLDEST;
+        if (res.getString(R.string.frame_policy_block).equals(policy))
+            return FrameQueue.Policy.BLOCK;
+        return FrameQueue.Policy.LATEST_ONLY;
     }
 
     /**